@@ -0,0 +1,178 @@
+package com.glodon.base.compress;
+
+import java.util.Arrays;
+
+import com.glodon.base.util.DataUtils;
+
+/**
+ * LZ4块格式的压缩, 压缩比和LZF接近, 解压只有数组拷贝, 比LZF和Deflate都快.
+ * <p>
+ * 每个序列: [token: 高4位literal长度, 低4位match长度-4][literal长度扩展][literal...][2字节offset, 小端][match长度扩展],
+ * 长度为15时后面跟若干字节, 直到遇到小于255的字节. 最后一个序列只有literal.
+ * 实例带有hash表, 不能在多个线程中同时压缩, 解压没有状态.
+ */
+public final class CompressLZ4 implements Compressor {
+
+    private static final int MIN_MATCH = 4;
+
+    // 最后5个字节总是literal, 最后一个match至少在结束前12个字节开始
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = (1 << 16) - 1;
+
+    private static final int HASH_LOG = 13;
+
+    // 连续没有找到match时逐渐加大步长, 不可压缩的数据很快扫过
+    private static final int SKIP_TRIGGER = 6;
+
+    private int[] cachedHashTable;
+
+    // hash表中保存的是位置加上base, 每次压缩后增加base, 小于base的项就是以前的, 不用每次清空hash表
+    private int base;
+
+    @Override
+    public int getAlgorithm() {
+        return LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] & 255) | (in[pos + 1] & 255) << 8 | (in[pos + 2] & 255) << 16 | in[pos + 3] << 24;
+    }
+
+    private static int hash(int x) {
+        return (x * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int anchor = 0;
+        if (inLen > MF_LIMIT) {
+            if (cachedHashTable == null) {
+                cachedHashTable = new int[1 << HASH_LOG];
+            }
+            int[] hashTab = cachedHashTable;
+            if (base > Integer.MAX_VALUE - inLen) {
+                Arrays.fill(hashTab, 0);
+                base = 1;
+            } else if (base == 0) {
+                base = 1;
+            }
+            int b = base;
+            base += inLen;
+            int matchLimit = inLen - LAST_LITERALS;
+            int mfLimit = inLen - MF_LIMIT;
+            int inPos = 0;
+            int searchCount = 1 << SKIP_TRIGGER;
+            while (inPos < mfLimit) {
+                int seq = readInt(in, inPos);
+                int h = hash(seq);
+                int ref = hashTab[h] - b;
+                hashTab[h] = inPos + b;
+                if (ref < 0 || inPos - ref > MAX_DISTANCE || readInt(in, ref) != seq) {
+                    inPos += searchCount++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searchCount = 1 << SKIP_TRIGGER;
+                while (inPos > anchor && ref > 0 && in[inPos - 1] == in[ref - 1]) {
+                    inPos--;
+                    ref--;
+                }
+                int len = MIN_MATCH;
+                while (inPos + len < matchLimit && in[inPos + len] == in[ref + len]) {
+                    len++;
+                }
+                outPos = writeLiterals(in, anchor, inPos - anchor, out, outPos, len - MIN_MATCH);
+                int off = inPos - ref;
+                out[outPos++] = (byte) off;
+                out[outPos++] = (byte) (off >>> 8);
+                if (len - MIN_MATCH >= 15) {
+                    outPos = writeLength(out, outPos, len - MIN_MATCH - 15);
+                }
+                inPos += len;
+                anchor = inPos;
+                if (inPos - 2 < mfLimit) {
+                    hashTab[hash(readInt(in, inPos - 2))] = inPos - 2 + b;
+                }
+            }
+        }
+        return writeLiterals(in, anchor, inLen - anchor, out, outPos, 0);
+    }
+
+    private static int writeLiterals(byte[] in, int inPos, int literals, byte[] out, int outPos,
+                                     int matchLen) {
+        int token = (Math.min(literals, 15) << 4) | Math.min(matchLen, 15);
+        out[outPos++] = (byte) token;
+        if (literals >= 15) {
+            outPos = writeLength(out, outPos, literals - 15);
+        }
+        System.arraycopy(in, inPos, out, outPos, literals);
+        return outPos + literals;
+    }
+
+    private static int writeLength(byte[] out, int outPos, int len) {
+        while (len >= 255) {
+            out[outPos++] = (byte) 255;
+            len -= 255;
+        }
+        out[outPos++] = (byte) len;
+        return outPos;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        int inEnd = inPos + inLen;
+        int outStart = outPos;
+        int outEnd = outPos + outLen;
+        while (true) {
+            int token = in[inPos++] & 255;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(in, inPos, out, outPos, literals);
+            inPos += literals;
+            outPos += literals;
+            if (inPos >= inEnd) {
+                break;
+            }
+            int off = (in[inPos] & 255) | (in[inPos + 1] & 255) << 8;
+            inPos += 2;
+            int len = token & 15;
+            if (len == 15) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            len += MIN_MATCH;
+            int ref = outPos - off;
+            if (off == 0 || ref < outStart || outPos + len > outEnd) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Corrupt LZ4 data at {0}", inPos);
+            }
+            if (off >= len) {
+                System.arraycopy(out, ref, out, outPos, len);
+                outPos += len;
+            } else {
+                for (int i = 0; i < len; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+        if (outPos != outEnd) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Expected {0} bytes, got {1}", outLen, outPos - outStart);
+        }
+    }
+}
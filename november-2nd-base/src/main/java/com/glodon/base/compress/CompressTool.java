@@ -186,6 +186,8 @@ public class CompressTool {
             return Compressor.LZF;
         } else if ("DEFLATE".equals(algorithm)) {
             return Compressor.DEFLATE;
+        } else if ("LZ4".equals(algorithm)) {
+            return Compressor.LZ4;
         } else {
             throw UnificationException.get("%s unsupported compression algorithm.", algorithm);
         }
@@ -199,6 +201,8 @@ public class CompressTool {
                 return new CompressLZF();
             case Compressor.DEFLATE:
                 return new CompressDeflate();
+            case Compressor.LZ4:
+                return new CompressLZ4();
             default:
                 throw UnificationException.get("%s unsupported compression algorithm.", String.valueOf(algorithm));
         }
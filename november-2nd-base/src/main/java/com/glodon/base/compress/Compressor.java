@@ -8,6 +8,8 @@ public interface Compressor {
 
     int DEFLATE = 2;
 
+    int LZ4 = 3;
+
     int getAlgorithm();
 
     int compress(byte[] in, int inLen, byte[] out, int outPos);
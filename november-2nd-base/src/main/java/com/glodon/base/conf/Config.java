@@ -23,6 +23,9 @@ public class Config extends HashMap<String, Object> {
     public static final String STORAGE_IN_MEMORY = "storage.in.memory";
     public static final String STORAGE_READ_ONLY = "storage.read.only";
     public static final String STORAGE_CACHE_SIZE = "storage.cache.size";
+    public static final String STORAGE_CACHE_POLICY = "storage.cache.policy";
+    public static final String STORAGE_MAX_RESIDENT_MEMORY = "storage.max.resident.memory";
+    public static final String STORAGE_OFF_HEAP_CACHE_SIZE = "storage.off.heap.cache.size";
     public static final String STORAGE_PAGE_SPLIT_SIZE = "storage.page.split.size";
     public static final String STORAGE_MIN_FILL_RATE = "storage.min.fill.rate";
 
@@ -32,15 +35,50 @@ public class Config extends HashMap<String, Object> {
     public static final String STORAGE_PAGE_OPERATION_HANDLER_FACTORY_TYPE = "storage.page.operation.handler.factory.type";
     public static final String STORAGE_PAGE_OPERATION_HANDLER_LOOP_INTERVAL = "storage.page.operation.handler.loop.interval";
     public static final String STORAGE_PAGE_OPERATION_HANDLER_FACTORY = "storage.page.operation.handler.factory";
+    public static final String STORAGE_REDO_LOG = "storage.redo.log";
+    public static final String STORAGE_REDO_LOG_SYNC_MODE = "storage.redo.log.sync.mode";
+    public static final String STORAGE_REDO_LOG_SYNC_PERIOD = "storage.redo.log.sync.period";
+    public static final String STORAGE_CHECKPOINT_SERVICE = "storage.checkpoint.service";
+    public static final String STORAGE_CHECKPOINT_PERIOD = "storage.checkpoint.period";
+    public static final String STORAGE_CHECKPOINT_DIRTY_SIZE = "storage.checkpoint.dirty.size";
+    public static final String STORAGE_COMPACT_RATE = "storage.compact.rate";
+    public static final String STORAGE_COMPACT_STEP_PAGES = "storage.compact.step.pages";
+    public static final String STORAGE_MMAP = "storage.mmap";
+    public static final String STORAGE_BLOOM_FILTER_BITS = "storage.bloom.filter.bits";
+    public static final String STORAGE_COMPRESS_MIN_SAVINGS = "storage.compress.min.savings";
 
     public final boolean isEmbedded() {
         return getBoolean(EMBEDDED, true);
     }
 
+    /**
+     * 页缓存的内存上限(字节), 同一个Storage中所有map共享
+     */
     public final int getStorageCacheSize() {
         return getIntValue(STORAGE_CACHE_SIZE, 16 * 1024 * 1024);
     }
 
+    /**
+     * 页缓存的淘汰策略, LIRS或者TINY_LFU
+     */
+    public final String getStorageCachePolicy() {
+        return getStr(STORAGE_CACHE_POLICY, "LIRS");
+    }
+
+    /**
+     * 每个map的树中叶子页占用内存的上限(字节), 超出时换出干净的叶子页, 默认和页缓存一样大, 0表示不换出
+     */
+    public final long getMaxResidentMemory() {
+        return getLong(STORAGE_MAX_RESIDENT_MEMORY, (long) getStorageCacheSize());
+    }
+
+    /**
+     * 堆外页缓存的内存上限(字节), 0表示不使用, 需要同时打开页缓存
+     */
+    public final long getOffHeapCacheSize() {
+        return getLong(STORAGE_OFF_HEAP_CACHE_SIZE, 0L);
+    }
+
     public final int getStoragePageSplitSize() {
         return getIntValue(STORAGE_PAGE_SPLIT_SIZE, 8 * 1024);
     }
@@ -55,6 +93,8 @@ public class Config extends HashMap<String, Object> {
                 return Compressor.NO;
             } else if (str.equals("LZF")) {
                 return Compressor.LZF;
+            } else if (str.equals("LZ4")) {
+                return Compressor.LZ4;
             } else if (str.equals("DEFLATE")) {
 
                 return Compressor.DEFLATE;
@@ -72,6 +112,35 @@ public class Config extends HashMap<String, Object> {
         return minFillRate;
     }
 
+    /**
+     * 每秒最多重写的字节数, 小于等于0表示不限速
+     */
+    public final int getCompactRate() {
+        return getIntValue(STORAGE_COMPACT_RATE, 16 * 1024 * 1024);
+    }
+
+    public final int getCompactStepPages() {
+        return getIntValue(STORAGE_COMPACT_STEP_PAGES, 256);
+    }
+
+    public final boolean isMmapEnabled() {
+        return getBoolean(STORAGE_MMAP, false);
+    }
+
+    /**
+     * 叶子页Bloom过滤器每个key占用的位数, 0表示不生成过滤器
+     */
+    public final int getBloomFilterBits() {
+        return getIntValue(STORAGE_BLOOM_FILTER_BITS, 0);
+    }
+
+    /**
+     * 页压缩后至少节省的百分比, 达不到时按不压缩保存
+     */
+    public final int getCompressMinSavings() {
+        return getIntValue(STORAGE_COMPRESS_MIN_SAVINGS, 12);
+    }
+
     public final String getPageStorageMode() {
         return getStr(STORAGE_PAGE_MODE);
     }
@@ -96,6 +165,30 @@ public class Config extends HashMap<String, Object> {
         return (PageOperationHandlerFactory) getVal(STORAGE_PAGE_OPERATION_HANDLER_FACTORY);
     }
 
+    public final boolean isRedoLogEnabled() {
+        return getBoolean(STORAGE_REDO_LOG, false);
+    }
+
+    public final String getRedoLogSyncMode() {
+        return getStr(STORAGE_REDO_LOG_SYNC_MODE, "periodic");
+    }
+
+    public final long getRedoLogSyncPeriod() {
+        return getLong(STORAGE_REDO_LOG_SYNC_PERIOD, 100l);
+    }
+
+    public final boolean isCheckpointServiceEnabled() {
+        return getBoolean(STORAGE_CHECKPOINT_SERVICE, false);
+    }
+
+    public final long getCheckpointPeriod() {
+        return getLong(STORAGE_CHECKPOINT_PERIOD, 60 * 1000l);
+    }
+
+    public final int getCheckpointDirtySize() {
+        return getIntValue(STORAGE_CHECKPOINT_DIRTY_SIZE, 64 * 1024 * 1024);
+    }
+
     public final boolean isInMemory() {
         return getBoolean(STORAGE_IN_MEMORY, false);
     }
@@ -51,6 +51,8 @@ public class FileStorage {
     protected FileChannel file;
     protected FileChannel encryptedFile;
     protected FileLock fileLock;
+    protected volatile ByteBuffer mappedBuffer;
+    private boolean mapUnsupported;
 
     @Override
     public String toString() {
@@ -371,6 +373,45 @@ public class FileStorage {
         return dst;
     }
 
+    /**
+     * 以只读方式映射整个文件, 之后写入的内容不在映射范围内.
+     * 加密文件、超过2G的文件或者不支持映射的文件系统返回false, 调用方应该使用readFully.
+     */
+    public synchronized boolean map() {
+        if (mappedBuffer != null) {
+            return true;
+        }
+        if (mapUnsupported || file == null) {
+            return false;
+        }
+        if (encryptedFile != null || fileSize <= 0 || fileSize > Integer.MAX_VALUE) {
+            mapUnsupported = true;
+            return false;
+        }
+        try {
+            mappedBuffer = file.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            mapUnsupported = true;
+            return false;
+        }
+    }
+
+    /**
+     * 从映射中返回[pos, pos + len)的切片, 不复制数据, 超出映射范围时退回readFully
+     */
+    public ByteBuffer readMapped(long pos, int len) {
+        ByteBuffer mapped = mappedBuffer;
+        if (mapped == null || pos + len > mapped.capacity()) {
+            return readFully(pos, len);
+        }
+        ByteBuffer dst = mapped.duplicate();
+        dst.limit((int) pos + len).position((int) pos);
+        readCount++;
+        readBytes += len;
+        return dst.slice();
+    }
+
     public void writeFully(long pos, ByteBuffer src) {
         int len = src.remaining();
         fileSize = Math.max(fileSize, pos + len);
@@ -433,6 +474,7 @@ public class FileStorage {
     }
 
     public void close() {
+        mappedBuffer = null;
         try {
             trace("close", name, file);
             if (fileLock != null) {
@@ -464,6 +506,7 @@ public class FileStorage {
     }
 
     public void truncate(long size) {
+        mappedBuffer = null;
         try {
             writeCount++;
             file.truncate(size);
@@ -0,0 +1,68 @@
+package com.glodon.base.storage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * 列上的过滤条件, 游标先只读取这一列过滤, 满足条件的行才读取其他列.
+ * <p>
+ * 列的值由StorageDataType.getColumnValue取得, 范围条件按Comparable比较, null不满足任何条件.
+ */
+public abstract class ColumnPredicate {
+
+    public final int columnIndex;
+
+    protected ColumnPredicate(int columnIndex) {
+        this.columnIndex = columnIndex;
+    }
+
+    public abstract boolean test(Object value);
+
+    public static ColumnPredicate equal(int columnIndex, Object value) {
+        return new ColumnPredicate(columnIndex) {
+            @Override
+            public boolean test(Object v) {
+                return v != null && v.equals(value);
+            }
+        };
+    }
+
+    public static ColumnPredicate in(int columnIndex, Object... values) {
+        HashSet<Object> set = new HashSet<>(Arrays.asList(values));
+        return new ColumnPredicate(columnIndex) {
+            @Override
+            public boolean test(Object v) {
+                return v != null && set.contains(v);
+            }
+        };
+    }
+
+    /**
+     * from和to为null时表示没有边界
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static ColumnPredicate range(int columnIndex, Comparable from, boolean fromInclusive, Comparable to,
+                                       boolean toInclusive) {
+        return new ColumnPredicate(columnIndex) {
+            @Override
+            public boolean test(Object v) {
+                if (v == null) {
+                    return false;
+                }
+                if (from != null) {
+                    int c = from.compareTo(v);
+                    if (c > 0 || c == 0 && !fromInclusive) {
+                        return false;
+                    }
+                }
+                if (to != null) {
+                    int c = to.compareTo(v);
+                    if (c < 0 || c == 0 && !toInclusive) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -7,22 +7,70 @@ public class CursorParameters<K> {
 
     public final K from;
     public final K to;
+    // from和to为null时表示没有边界, 默认包含边界上的key
+    public final boolean fromInclusive;
+    public final boolean toInclusive;
     public final int[] columnIndexes;
     public final boolean allColumns;
+    // 游标进入内部结点时异步预读的子页个数, 0表示不预读
+    public final int prefetchDepth;
+    // 列上的过滤条件, null表示不过滤
+    public final ColumnPredicate predicate;
 
     public CursorParameters(K from, K to, int[] columnIndexes) {
         this(from, to, columnIndexes, false);
     }
 
     public CursorParameters(K from, K to, int[] columnIndexes, boolean allColumns) {
+        this(from, true, to, true, columnIndexes, allColumns);
+    }
+
+    public CursorParameters(K from, boolean fromInclusive, K to, boolean toInclusive, int[] columnIndexes,
+                            boolean allColumns) {
+        this(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, 0);
+    }
+
+    public CursorParameters(K from, boolean fromInclusive, K to, boolean toInclusive, int[] columnIndexes,
+                            boolean allColumns, int prefetchDepth) {
+        this(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, prefetchDepth, null);
+    }
+
+    public CursorParameters(K from, boolean fromInclusive, K to, boolean toInclusive, int[] columnIndexes,
+                            boolean allColumns, int prefetchDepth, ColumnPredicate predicate) {
         this.from = from;
         this.to = to;
+        this.fromInclusive = fromInclusive;
+        this.toInclusive = toInclusive;
         this.columnIndexes = columnIndexes;
         this.allColumns = allColumns;
+        this.prefetchDepth = prefetchDepth;
+        this.predicate = predicate;
     }
 
     public <K2> CursorParameters<K2> copy(K2 from, K2 to) {
-        return new CursorParameters<>(from, to, columnIndexes, allColumns);
+        return new CursorParameters<>(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, prefetchDepth,
+                predicate);
+    }
+
+    /**
+     * 只改变遍历的范围, 其他参数不变
+     */
+    public CursorParameters<K> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new CursorParameters<>(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, prefetchDepth,
+                predicate);
+    }
+
+    public CursorParameters<K> prefetch(int prefetchDepth) {
+        return new CursorParameters<>(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, prefetchDepth,
+                predicate);
+    }
+
+    /**
+     * 只返回满足predicate的行, 列存储时先只读取过滤的列
+     */
+    public CursorParameters<K> filter(ColumnPredicate predicate) {
+        return new CursorParameters<>(from, fromInclusive, to, toInclusive, columnIndexes, allColumns, prefetchDepth,
+                predicate);
     }
 
     public static <K> CursorParameters<K> create(K from) {
@@ -33,6 +81,10 @@ public class CursorParameters<K> {
         return new CursorParameters<>(from, to, null);
     }
 
+    public static <K> CursorParameters<K> create(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return new CursorParameters<>(from, fromInclusive, to, toInclusive, null, false);
+    }
+
     public static <K> CursorParameters<K> create(K from, int columnIndex) {
         return create(from, new int[]{columnIndex});
     }
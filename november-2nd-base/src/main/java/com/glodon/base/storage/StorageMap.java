@@ -3,6 +3,8 @@ package com.glodon.base.storage;
 import com.glodon.base.async.AsyncHandler;
 import com.glodon.base.async.AsyncResult;
 import com.glodon.base.storage.type.StorageDataType;
+import com.glodon.base.table.Scanner;
+import com.glodon.base.util.DataUtils;
 
 /**
  * Created by liujing on 2023/10/12.
@@ -27,6 +29,15 @@ public interface StorageMap<K, V> {
 
     V putIfAbsent(K key, V value);
 
+    /**
+     * 批量写入, keys必须按升序排列且没有重复
+     */
+    default void putAll(K[] keys, V[] values) {
+        for (int i = 0, len = keys.length; i < len; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
     V remove(K key);
 
     boolean replace(K key, V oldValue, V newValue);
@@ -72,6 +83,27 @@ public interface StorageMap<K, V> {
         return cursor(parameters.from);
     }
 
+    /**
+     * @param descending 为true时按key逆序遍历, 此时from是较大的一端, to是较小的一端
+     */
+    default StorageMapCursor<K, V> cursor(CursorParameters<K> parameters, boolean descending) {
+        if (descending) {
+            throw DataUtils.newUnsupportedOperationException("Descending cursor");
+        }
+        return cursor(parameters);
+    }
+
+    /**
+     * 扫描parameters范围内的记录, 实现类可以把范围切分后并行扫描, 此时scanner需要是线程安全的
+     */
+    default void parallelScan(CursorParameters<K> parameters, int parallelism, Scanner<K, V> scanner) {
+        StorageMapCursor<K, V> cursor = cursor(parameters);
+        while (cursor.hasNext()) {
+            cursor.next();
+            scanner.handle(cursor.getKey(), cursor.getValue());
+        }
+    }
+
     void clear();
 
     void remove();
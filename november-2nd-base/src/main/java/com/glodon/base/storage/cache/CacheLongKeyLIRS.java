@@ -14,7 +14,7 @@ import com.glodon.base.util.DataUtils;
  * <p>
  * Created by liujing on 2023/10/12.
  */
-public class CacheLongKeyLIRS<V> {
+public class CacheLongKeyLIRS<V> implements LongKeyCache<V> {
 
     private long maxMemory;
     private final Segment<V>[] segments;
@@ -23,6 +23,7 @@ public class CacheLongKeyLIRS<V> {
     private final int segmentMask;
     private final int stackMoveDistance;
     private final int nonResidentQueueSize;
+    private Listener<V> listener;
 
     @SuppressWarnings("unchecked")
     public CacheLongKeyLIRS(Config config) {
@@ -42,6 +43,16 @@ public class CacheLongKeyLIRS<V> {
         long max = Math.max(1, maxMemory / segmentCount);
         for (int i = 0; i < segmentCount; i++) {
             segments[i] = new Segment<V>(max, stackMoveDistance, 8, nonResidentQueueSize);
+            segments[i].listener = listener;
+        }
+    }
+
+    public void setListener(Listener<V> listener) {
+        this.listener = listener;
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                s.listener = listener;
+            }
         }
     }
 
@@ -293,6 +304,8 @@ public class CacheLongKeyLIRS<V> {
 
         private int stackMoveCounter;
 
+        Listener<V> listener;
+
         Segment(long maxMemory, int stackMoveDistance, int len, int nonResidentQueueSize) {
             setMaxMemory(maxMemory);
             this.stackMoveDistance = stackMoveDistance;
@@ -313,6 +326,7 @@ public class CacheLongKeyLIRS<V> {
 
         Segment(Segment<V> old, int len) {
             this(old.maxMemory, old.stackMoveDistance, len, old.nonResidentQueueSize);
+            listener = old.listener;
             hits = old.hits;
             misses = old.misses;
             Entry<V> s = old.stack.stackPrev;
@@ -459,6 +473,9 @@ public class CacheLongKeyLIRS<V> {
             }
             mapSize++;
             addToStack(e);
+            if (listener != null) {
+                listener.onAdded(key, value, memory);
+            }
             return old;
         }
 
@@ -486,6 +503,9 @@ public class CacheLongKeyLIRS<V> {
             }
             mapSize--;
             usedMemory -= e.memory;
+            if (old != null && listener != null) {
+                listener.onRemoved(key, old, e.memory);
+            }
             if (e.stackNext != null) {
                 removeFromStack(e);
             }
@@ -518,6 +538,9 @@ public class CacheLongKeyLIRS<V> {
                 Entry<V> e = queue.queuePrev;
                 usedMemory -= e.memory;
                 removeFromQueue(e);
+                if (listener != null) {
+                    listener.onRemoved(e.key, e.value, e.memory);
+                }
                 e.value = null;
                 e.memory = 0;
                 addToQueue(queue2, e);
@@ -0,0 +1,447 @@
+package com.glodon.base.storage.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.glodon.base.util.DataUtils;
+
+/**
+ * W-TinyLFU淘汰策略的缓存, 适合访问频率差别很大, 又夹杂着一次性扫描的负载.
+ * <p>
+ * 新的项先进入窗口LRU(1%的内存), 从窗口淘汰的项和主区中最旧的项比较访问频率, 频率高的留下.
+ * 主区是分段LRU: 试用区中再次被访问的项升级到保护区(80%的内存), 保护区满时最旧的项降回试用区.
+ * 访问频率用count-min sketch估计, 每个key占4个4位计数器, 累计次数达到表大小的10倍时所有计数器减半, 旧的热点逐渐冷却.
+ * 和CacheLongKeyLIRS一样按key的hash分段加锁, 每段的内存上限是总数的1/segmentCount.
+ */
+public class CacheLongKeyTinyLFU<V> implements LongKeyCache<V> {
+
+    private long maxMemory;
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+    private final int segmentShift;
+    private Listener<V> listener;
+
+    public CacheLongKeyTinyLFU(long maxMemory) {
+        this(maxMemory, 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CacheLongKeyTinyLFU(long maxMemory, int segmentCount) {
+        DataUtils.checkArgument(Integer.bitCount(segmentCount) == 1,
+                "The segment count must be a power of 2, is {0}", segmentCount);
+        segmentMask = segmentCount - 1;
+        segmentShift = 32 - Integer.bitCount(segmentMask);
+        segments = new Segment[segmentCount];
+        setMaxMemory(maxMemory);
+        clear();
+    }
+
+    private Segment<V> getSegment(long key) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    @Override
+    public V get(long key) {
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            return s.get(key);
+        }
+    }
+
+    @Override
+    public V peek(long key) {
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            Entry<V> e = s.map.get(key);
+            return e == null ? null : e.value;
+        }
+    }
+
+    @Override
+    public V put(long key, V value, int memory) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            return s.put(key, value, memory);
+        }
+    }
+
+    @Override
+    public V remove(long key) {
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            Entry<V> e = s.map.get(key);
+            if (e == null) {
+                return null;
+            }
+            s.removeEntry(e);
+            return e.value;
+        }
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            return s.map.containsKey(key);
+        }
+    }
+
+    @Override
+    public int getMemory(long key) {
+        Segment<V> s = getSegment(key);
+        synchronized (s) {
+            Entry<V> e = s.map.get(key);
+            return e == null ? 0 : e.memory;
+        }
+    }
+
+    @Override
+    public Set<Long> keySet() {
+        HashSet<Long> set = new HashSet<>();
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                set.addAll(s.map.keySet());
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public long getUsedMemory() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.usedMemory;
+        }
+        return x;
+    }
+
+    @Override
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    @Override
+    public void setMaxMemory(long maxMemory) {
+        DataUtils.checkArgument(maxMemory > 0, "Max memory must be larger than 0, is {0}", maxMemory);
+        this.maxMemory = maxMemory;
+        for (Segment<V> s : segments) {
+            if (s != null) {
+                synchronized (s) {
+                    s.setMaxMemory(getSegmentMaxMemory());
+                    s.evict();
+                }
+            }
+        }
+    }
+
+    private long getSegmentMaxMemory() {
+        return Math.max(1, maxMemory / segments.length);
+    }
+
+    @Override
+    public long getHits() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.hits;
+        }
+        return x;
+    }
+
+    @Override
+    public long getMisses() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.misses;
+        }
+        return x;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(getSegmentMaxMemory());
+            segments[i].listener = listener;
+        }
+    }
+
+    @Override
+    public void setListener(Listener<V> listener) {
+        this.listener = listener;
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                s.listener = listener;
+            }
+        }
+    }
+
+    public int size() {
+        int x = 0;
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                x += s.map.size();
+            }
+        }
+        return x;
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static class Entry<V> {
+        final long key;
+        V value;
+        int memory;
+        int queue;
+        Entry<V> prev;
+        Entry<V> next;
+
+        Entry(long key) {
+            this.key = key;
+        }
+    }
+
+    private static class Segment<V> {
+
+        final HashMap<Long, Entry<V>> map = new HashMap<>();
+        final FrequencySketch sketch = new FrequencySketch();
+        // 三个队列的头结点, next是最近访问的一端, prev是最旧的一端
+        @SuppressWarnings("unchecked")
+        final Entry<V>[] queues = new Entry[3];
+        final long[] queueMemory = new long[3];
+        long maxMemory;
+        long windowMaxMemory;
+        long protectedMaxMemory;
+        long usedMemory;
+        long hits;
+        long misses;
+        Listener<V> listener;
+
+        Segment(long maxMemory) {
+            for (int i = 0; i < queues.length; i++) {
+                Entry<V> head = new Entry<>(0);
+                head.prev = head.next = head;
+                queues[i] = head;
+            }
+            setMaxMemory(maxMemory);
+        }
+
+        void setMaxMemory(long maxMemory) {
+            this.maxMemory = maxMemory;
+            windowMaxMemory = Math.max(1, maxMemory / 100);
+            protectedMaxMemory = (maxMemory - windowMaxMemory) * 4 / 5;
+        }
+
+        V get(long key) {
+            sketch.increment(key);
+            Entry<V> e = map.get(key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            onAccess(e);
+            return e.value;
+        }
+
+        V put(long key, V value, int memory) {
+            sketch.increment(key);
+            Entry<V> e = map.get(key);
+            V old = null;
+            if (e == null) {
+                e = new Entry<>(key);
+                e.value = value;
+                e.memory = memory;
+                map.put(key, e);
+                sketch.ensureCapacity(map.size());
+                link(e, WINDOW);
+                usedMemory += memory;
+            } else {
+                old = e.value;
+                if (listener != null) {
+                    listener.onRemoved(key, old, e.memory);
+                }
+                e.value = value;
+                queueMemory[e.queue] += memory - e.memory;
+                usedMemory += memory - e.memory;
+                e.memory = memory;
+                onAccess(e);
+            }
+            if (listener != null) {
+                listener.onAdded(key, value, memory);
+            }
+            evict();
+            return old;
+        }
+
+        private void onAccess(Entry<V> e) {
+            if (e.queue == PROBATION) {
+                unlink(e);
+                link(e, PROTECTED);
+                while (queueMemory[PROTECTED] > protectedMaxMemory) {
+                    Entry<V> demoted = queues[PROTECTED].prev;
+                    unlink(demoted);
+                    link(demoted, PROBATION);
+                }
+            } else {
+                unlink(e);
+                link(e, e.queue);
+            }
+        }
+
+        void evict() {
+            while (queueMemory[WINDOW] > windowMaxMemory) {
+                Entry<V> candidate = queues[WINDOW].prev;
+                unlink(candidate);
+                admit(candidate);
+            }
+            while (usedMemory > maxMemory) {
+                Entry<V> victim = getVictim();
+                if (victim == null) {
+                    break;
+                }
+                removeEntry(victim);
+            }
+        }
+
+        // 从窗口淘汰的项和主区最旧的项比较访问频率, 候选项的频率更高时才淘汰主区的项
+        private void admit(Entry<V> candidate) {
+            int candidateFreq = sketch.frequency(candidate.key);
+            while (usedMemory > maxMemory) {
+                Entry<V> victim = getMainVictim();
+                if (victim == null) {
+                    break;
+                }
+                if (candidateFreq > sketch.frequency(victim.key)) {
+                    removeEntry(victim);
+                } else {
+                    map.remove(candidate.key);
+                    usedMemory -= candidate.memory;
+                    if (listener != null) {
+                        listener.onRemoved(candidate.key, candidate.value, candidate.memory);
+                    }
+                    return;
+                }
+            }
+            link(candidate, PROBATION);
+        }
+
+        private Entry<V> getMainVictim() {
+            if (queues[PROBATION].prev != queues[PROBATION])
+                return queues[PROBATION].prev;
+            if (queues[PROTECTED].prev != queues[PROTECTED])
+                return queues[PROTECTED].prev;
+            return null;
+        }
+
+        private Entry<V> getVictim() {
+            Entry<V> victim = getMainVictim();
+            if (victim == null && queues[WINDOW].prev != queues[WINDOW])
+                victim = queues[WINDOW].prev;
+            return victim;
+        }
+
+        void removeEntry(Entry<V> e) {
+            unlink(e);
+            map.remove(e.key);
+            usedMemory -= e.memory;
+            if (listener != null) {
+                listener.onRemoved(e.key, e.value, e.memory);
+            }
+        }
+
+        private void link(Entry<V> e, int queue) {
+            Entry<V> head = queues[queue];
+            e.queue = queue;
+            e.prev = head;
+            e.next = head.next;
+            head.next.prev = e;
+            head.next = e;
+            queueMemory[queue] += e.memory;
+        }
+
+        private void unlink(Entry<V> e) {
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+            e.prev = e.next = null;
+            queueMemory[e.queue] -= e.memory;
+        }
+    }
+
+    /**
+     * 4位计数器的count-min sketch, 每个long有16个计数器
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table;
+        private int tableMask;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch() {
+            ensureCapacity(16);
+        }
+
+        // 表的大小跟着项数增长, 估计的误差不随缓存变大而变大
+        void ensureCapacity(int size) {
+            int len = Integer.highestOneBit(Math.max(16, size - 1) << 1);
+            if (table != null && table.length >= len) {
+                return;
+            }
+            table = new long[len];
+            tableMask = len - 1;
+            sampleSize = 10 * len;
+            additions = 0;
+        }
+
+        int frequency(long key) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                long h = hash(key, i);
+                int count = (int) ((table[(int) h & tableMask] >>> getShift(h)) & 15);
+                min = Math.min(min, count);
+            }
+            return min;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long h = hash(key, i);
+                int index = (int) h & tableMask;
+                int shift = getShift(h);
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions >>>= 1;
+        }
+
+        private static long hash(long key, int i) {
+            long h = (key + SEEDS[i]) * SEEDS[(i + 1) & 3];
+            return h ^ (h >>> 32);
+        }
+
+        // 用hash的高位选择long中的计数器, 低位选择long
+        private static int getShift(long h) {
+            return (int) (h >>> 60) << 2;
+        }
+    }
+}
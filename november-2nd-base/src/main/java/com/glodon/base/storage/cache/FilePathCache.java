@@ -2,6 +2,7 @@ package com.glodon.base.storage.cache;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
@@ -149,6 +150,12 @@ public class FilePathCache extends FilePathWrapper {
             return base.tryLock(position, size, shared);
         }
 
+        // 映射的内容由操作系统的页缓存负责, 不经过这里的块缓存
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return base.map(mode, position, size);
+        }
+
         @Override
         public String toString() {
             return "cache:" + base.toString();
@@ -0,0 +1,51 @@
+package com.glodon.base.storage.cache;
+
+import java.util.Set;
+
+/**
+ * 以long为key, 按内存大小淘汰的缓存, 页缓存可以选择不同的淘汰策略
+ */
+public interface LongKeyCache<V> {
+
+    /**
+     * 值放入缓存和离开缓存(淘汰, 删除或者被替换)时的回调, 在缓存段的锁内调用, 不能再访问缓存.
+     * clear时不回调.
+     */
+    interface Listener<V> {
+
+        void onAdded(long key, V value, int memory);
+
+        void onRemoved(long key, V value, int memory);
+    }
+
+    void setListener(Listener<V> listener);
+
+    V get(long key);
+
+    /**
+     * 读取但是不影响淘汰顺序和命中统计
+     */
+    V peek(long key);
+
+    V put(long key, V value, int memory);
+
+    V remove(long key);
+
+    boolean containsKey(long key);
+
+    int getMemory(long key);
+
+    Set<Long> keySet();
+
+    long getUsedMemory();
+
+    long getMaxMemory();
+
+    void setMaxMemory(long maxMemory);
+
+    long getHits();
+
+    long getMisses();
+
+    void clear();
+}
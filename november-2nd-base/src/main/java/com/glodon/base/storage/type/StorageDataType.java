@@ -78,6 +78,13 @@ public interface StorageDataType {
         }
     }
 
+    /**
+     * 返回一个大于left且不大于right的key, 用作BTree内部结点的分隔key, 越短越好
+     */
+    default Object getSeparator(Object left, Object right) {
+        return right;
+    }
+
     default void writeMeta(DataBuffer buff, Object obj) {
     }
 
@@ -92,6 +99,29 @@ public interface StorageDataType {
     default void readColumn(ByteBuffer buff, Object obj, int columnIndex) {
     }
 
+    /**
+     * 按数值编码的int, long和timestamp列不经过序列化, 直接把值设置到行中,
+     * value是ValueInt, ValueLong或ValueTimestamp. 返回false时按原来的格式序列化后调用readColumn
+     */
+    default boolean setColumnValue(Object obj, int columnIndex, Value value) {
+        return false;
+    }
+
+    /**
+     * 创建一个空的行对象, 按列过滤时用来临时读入字典中的列值, 不会改动页中共享的行对象.
+     * 返回null时过滤先把整列解码到页中
+     */
+    default Object newRow(int columnCount) {
+        return null;
+    }
+
+    /**
+     * 行中某一列的值, 用于按列过滤
+     */
+    default Object getColumnValue(Object obj, int columnIndex) {
+        return obj;
+    }
+
     default void setColumns(Object oldObj, Object newObj, int[] columnIndexes) {
     }
 
@@ -37,5 +37,12 @@ public interface Tablet<ID_TYPE, DATA_TYPE extends Value> {
 
     void scan(Scanner<ID_TYPE, DATA_TYPE> scanner);
 
+    /**
+     * 并行扫描全部数据, scanner会在多个线程中同时调用, 不保证回调的顺序
+     */
+    default void parallelScan(Scanner<ID_TYPE, DATA_TYPE> scanner) {
+        scan(scanner);
+    }
+
     Set<DATA_TYPE> in(Value v);
 }
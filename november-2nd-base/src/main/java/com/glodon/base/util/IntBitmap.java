@@ -0,0 +1,214 @@
+package com.glodon.base.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import com.glodon.base.storage.DataBuffer;
+
+/**
+ * 非负int的集合, 简化版的roaring bitmap.
+ * <p>
+ * 按高16位分组, 组内元素不超过4096个时用有序的char数组保存低16位, 超过后转成8K字节的位图.
+ * 格式: [组数 varInt], 每组: [高16位 varInt][元素个数 varInt][char...或者1024个long]
+ */
+public final class IntBitmap {
+
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_LONGS = 1 << 10;
+
+    private int[] highs;
+    // char[]或者long[], 和highs一一对应
+    private Object[] containers;
+    private int[] counts;
+    private int containerCount;
+    private int size;
+
+    public IntBitmap() {
+        highs = new int[4];
+        containers = new Object[4];
+        counts = new int[4];
+    }
+
+    private IntBitmap(IntBitmap old) {
+        containerCount = old.containerCount;
+        size = old.size;
+        highs = Arrays.copyOf(old.highs, Math.max(4, containerCount));
+        counts = Arrays.copyOf(old.counts, highs.length);
+        containers = new Object[highs.length];
+        for (int i = 0; i < containerCount; i++) {
+            Object c = old.containers[i];
+            containers[i] = c instanceof long[] ? ((long[]) c).clone()
+                    : Arrays.copyOf((char[]) c, counts[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public IntBitmap copy() {
+        return new IntBitmap(this);
+    }
+
+    public boolean contains(int x) {
+        int index = Arrays.binarySearch(highs, 0, containerCount, x >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        Object c = containers[index];
+        char low = (char) x;
+        if (c instanceof long[]) {
+            return (((long[]) c)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) c, 0, counts[index], low) >= 0;
+    }
+
+    /**
+     * 加入x, x已经存在时返回false
+     */
+    public boolean add(int x) {
+        if (x < 0) {
+            throw DataUtils.newIllegalArgumentException("Negative value {0}", x);
+        }
+        int high = x >>> 16;
+        int index = Arrays.binarySearch(highs, 0, containerCount, high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high);
+        }
+        char low = (char) x;
+        Object c = containers[index];
+        if (c instanceof long[]) {
+            long[] bits = (long[]) c;
+            long mask = 1L << low;
+            if ((bits[low >>> 6] & mask) != 0) {
+                return false;
+            }
+            bits[low >>> 6] |= mask;
+        } else {
+            char[] array = (char[]) c;
+            int count = counts[index];
+            int pos = Arrays.binarySearch(array, 0, count, low);
+            if (pos >= 0) {
+                return false;
+            }
+            pos = -pos - 1;
+            if (count == MAX_ARRAY_SIZE) {
+                long[] bits = toBitmap(array, count);
+                bits[low >>> 6] |= 1L << low;
+                containers[index] = bits;
+            } else {
+                if (count == array.length) {
+                    array = Arrays.copyOf(array, Math.min(MAX_ARRAY_SIZE, count * 2));
+                    containers[index] = array;
+                }
+                System.arraycopy(array, pos, array, pos + 1, count - pos);
+                array[pos] = low;
+            }
+        }
+        counts[index]++;
+        size++;
+        return true;
+    }
+
+    private void insertContainer(int index, int high) {
+        if (containerCount == highs.length) {
+            int newLength = containerCount * 2;
+            highs = Arrays.copyOf(highs, newLength);
+            counts = Arrays.copyOf(counts, newLength);
+            containers = Arrays.copyOf(containers, newLength);
+        }
+        int moved = containerCount - index;
+        System.arraycopy(highs, index, highs, index + 1, moved);
+        System.arraycopy(counts, index, counts, index + 1, moved);
+        System.arraycopy(containers, index, containers, index + 1, moved);
+        highs[index] = high;
+        counts[index] = 0;
+        containers[index] = new char[4];
+        containerCount++;
+    }
+
+    private static long[] toBitmap(char[] array, int count) {
+        long[] bits = new long[BITMAP_LONGS];
+        for (int i = 0; i < count; i++) {
+            char low = array[i];
+            bits[low >>> 6] |= 1L << low;
+        }
+        return bits;
+    }
+
+    /**
+     * 按升序遍历所有元素
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < containerCount; i++) {
+            int high = highs[i] << 16;
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                long[] bits = (long[]) c;
+                for (int j = 0; j < BITMAP_LONGS; j++) {
+                    long w = bits[j];
+                    while (w != 0) {
+                        action.accept(high | (j << 6) | Long.numberOfTrailingZeros(w));
+                        w &= w - 1;
+                    }
+                }
+            } else {
+                char[] array = (char[]) c;
+                for (int j = 0, count = counts[i]; j < count; j++) {
+                    action.accept(high | array[j]);
+                }
+            }
+        }
+    }
+
+    public void write(DataBuffer buff) {
+        buff.putVarInt(containerCount);
+        for (int i = 0; i < containerCount; i++) {
+            int count = counts[i];
+            buff.putVarInt(highs[i]).putVarInt(count);
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                for (long w : (long[]) c) {
+                    buff.putLong(w);
+                }
+            } else {
+                char[] array = (char[]) c;
+                for (int j = 0; j < count; j++) {
+                    buff.putChar(array[j]);
+                }
+            }
+        }
+    }
+
+    public static IntBitmap read(ByteBuffer buff) {
+        IntBitmap bitmap = new IntBitmap();
+        int containerCount = DataUtils.readVarInt(buff);
+        for (int i = 0; i < containerCount; i++) {
+            int high = DataUtils.readVarInt(buff);
+            int count = DataUtils.readVarInt(buff);
+            bitmap.insertContainer(i, high);
+            if (count > MAX_ARRAY_SIZE) {
+                long[] bits = new long[BITMAP_LONGS];
+                for (int j = 0; j < BITMAP_LONGS; j++) {
+                    bits[j] = buff.getLong();
+                }
+                bitmap.containers[i] = bits;
+            } else {
+                char[] array = new char[Math.max(4, count)];
+                for (int j = 0; j < count; j++) {
+                    array[j] = buff.getChar();
+                }
+                bitmap.containers[i] = array;
+            }
+            bitmap.counts[i] = count;
+            bitmap.size += count;
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,92 @@
+package com.glodon.base.compress;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompressLZ4Test {
+
+    private final CompressLZ4 lz4 = new CompressLZ4();
+
+    // 不可压缩时每255个literal多一个长度字节, 再加上token
+    private static int maxCompressedLength(int inLen) {
+        return inLen + inLen / 255 + 16;
+    }
+
+    private int roundTrip(byte[] in) {
+        byte[] comp = new byte[maxCompressedLength(in.length) + 3];
+        comp[0] = comp[1] = comp[2] = 7;
+        int end = lz4.compress(in, in.length, comp, 3);
+        int compLen = end - 3;
+        Assert.assertTrue(compLen <= maxCompressedLength(in.length));
+        byte[] out = new byte[in.length + 2];
+        lz4.expand(comp, 3, compLen, out, 1, in.length);
+        Assert.assertArrayEquals(in, Arrays.copyOfRange(out, 1, in.length + 1));
+        return compLen;
+    }
+
+    @Test
+    public void testIncompressible() {
+        Random r = new Random(1);
+        for (int len : new int[] { 13, 100, 4096, 100000 }) {
+            byte[] in = new byte[len];
+            r.nextBytes(in);
+            int compLen = roundTrip(in);
+            Assert.assertTrue(compLen > len);
+        }
+    }
+
+    // 不超过MF_LIMIT的输入不查找match, 全部是literal
+    @Test
+    public void testShorterThanMinMatch() {
+        for (int len = 0; len <= 20; len++) {
+            byte[] in = new byte[len];
+            Arrays.fill(in, (byte) 'a');
+            int compLen = roundTrip(in);
+            if (len <= 12) {
+                Assert.assertEquals(len + 1, compLen);
+            }
+        }
+    }
+
+    // literal长度正好是15, 270和需要多个255扩展字节时, 后面跟着需要长度扩展的match
+    @Test
+    public void testLongLiteralRuns() {
+        Random r = new Random(2);
+        for (int literals : new int[] { 14, 15, 16, 269, 270, 271, 1000 }) {
+            byte[] in = new byte[literals + 2000];
+            r.nextBytes(in);
+            Arrays.fill(in, literals, in.length, (byte) 3);
+            int compLen = roundTrip(in);
+            Assert.assertTrue(compLen < literals + 100);
+        }
+    }
+
+    // match和当前位置重叠时逐字节复制, 压缩器重复使用时hash表中以前的项不能被当成match
+    @Test
+    public void testRepeatsAndReuse() {
+        byte[] in = new byte[65536 * 3];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (byte) (i % 7 == 0 ? i / 7 : i % 3);
+        }
+        for (int i = 0; i < 3; i++) {
+            roundTrip(in);
+            roundTrip(Arrays.copyOf(in, 1000 + i));
+        }
+    }
+
+    @Test
+    public void testCorruptInput() {
+        byte[] in = new byte[1000];
+        byte[] comp = new byte[maxCompressedLength(in.length)];
+        int compLen = lz4.compress(in, in.length, comp, 0);
+        try {
+            lz4.expand(comp, 0, compLen, new byte[in.length], 0, in.length - 1);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // 期望的异常
+        }
+    }
+}
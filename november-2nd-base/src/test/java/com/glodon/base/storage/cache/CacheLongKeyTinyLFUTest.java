@@ -0,0 +1,93 @@
+package com.glodon.base.storage.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CacheLongKeyTinyLFUTest {
+
+    private static final int MEMORY = 100;
+
+    private long listenerMemory;
+
+    // 只用一个段, 窗口是1%的内存, 正好放下一项
+    private CacheLongKeyTinyLFU<String> createCache() {
+        CacheLongKeyTinyLFU<String> cache = new CacheLongKeyTinyLFU<>(100 * MEMORY, 1);
+        cache.setListener(new LongKeyCache.Listener<String>() {
+            @Override
+            public void onAdded(long key, String value, int memory) {
+                listenerMemory += memory;
+            }
+
+            @Override
+            public void onRemoved(long key, String value, int memory) {
+                listenerMemory -= memory;
+            }
+        });
+        for (long key = 0; key < 99; key++) {
+            cache.put(key, "v" + key, MEMORY);
+        }
+        for (int i = 0; i < 3; i++) {
+            for (long key = 0; key < 99; key++) {
+                Assert.assertEquals("v" + key, cache.get(key));
+            }
+        }
+        check(cache);
+        return cache;
+    }
+
+    private void check(CacheLongKeyTinyLFU<String> cache) {
+        long used = 0;
+        for (long key : cache.keySet()) {
+            used += cache.getMemory(key);
+        }
+        Assert.assertEquals(used, cache.getUsedMemory());
+        Assert.assertEquals(used, listenerMemory);
+        Assert.assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+    }
+
+    // 访问频率低的候选项被拒绝时, 窗口和总内存都要扣掉它, 之后新的项仍然能留在窗口中
+    @Test
+    public void testRejectWindowCandidate() {
+        CacheLongKeyTinyLFU<String> cache = createCache();
+        cache.put(1000, "a", MEMORY);
+        check(cache);
+        for (long key = 1001; key < 1100; key++) {
+            cache.put(key, "a", MEMORY);
+            Assert.assertFalse(cache.containsKey(key - 1));
+            Assert.assertTrue(cache.containsKey(key));
+            Assert.assertEquals(100, cache.size());
+            check(cache);
+        }
+        for (long key = 0; key < 99; key++) {
+            Assert.assertTrue(cache.containsKey(key));
+        }
+    }
+
+    // 候选项的频率更高时淘汰主区最旧的项, 内存大小不同时可能淘汰多项
+    @Test
+    public void testAdmitWindowCandidate() {
+        CacheLongKeyTinyLFU<String> cache = createCache();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNull(cache.get(2000));
+        }
+        cache.put(2000, "b", 3 * MEMORY);
+        check(cache);
+        cache.put(2001, "c", MEMORY);
+        Assert.assertTrue(cache.containsKey(2000));
+        Assert.assertTrue(cache.containsKey(2001));
+        Assert.assertEquals(98, cache.size());
+        check(cache);
+
+        // 修改已有项的内存大小也要计入所在的队列
+        cache.put(2000, "b", MEMORY);
+        cache.put(2001, "c", 2 * MEMORY);
+        check(cache);
+        Assert.assertEquals("b", cache.remove(2000));
+        Assert.assertEquals("c", cache.remove(2001));
+        check(cache);
+        for (long key = 3000; key < 3200; key++) {
+            cache.put(key, "d", MEMORY);
+            check(cache);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.glodon.base.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.glodon.base.storage.DataBuffer;
+
+public class IntBitmapTest {
+
+    private static IntBitmap writeAndRead(IntBitmap bitmap) {
+        DataBuffer buff = DataBuffer.create();
+        try {
+            bitmap.write(buff);
+            ByteBuffer bytes = buff.getAndFlipBuffer();
+            IntBitmap copy = IntBitmap.read(bytes);
+            Assert.assertFalse(bytes.hasRemaining());
+            return copy;
+        } finally {
+            buff.close();
+        }
+    }
+
+    private static void check(TreeSet<Integer> expected, IntBitmap bitmap) {
+        Assert.assertEquals(expected.size(), bitmap.size());
+        List<Integer> values = new ArrayList<>();
+        bitmap.forEach(values::add);
+        Assert.assertEquals(new ArrayList<>(expected), values);
+        for (int x : expected) {
+            Assert.assertTrue(bitmap.contains(x));
+            if (!expected.contains(x + 1)) {
+                Assert.assertFalse(bitmap.contains(x + 1));
+            }
+        }
+    }
+
+    // 一组正好4096个元素时还是数组, 第4097个元素转成位图, 读出时按个数区分两种格式
+    @Test
+    public void testArrayToBitmap() {
+        IntBitmap bitmap = new IntBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        int high = 3 << 16;
+        for (int i = 4095; i >= 0; i--) {
+            int x = high | (i * 16);
+            Assert.assertTrue(bitmap.add(x));
+            expected.add(x);
+        }
+        Assert.assertFalse(bitmap.add(high));
+        check(expected, bitmap);
+        IntBitmap array = writeAndRead(bitmap);
+        check(expected, array);
+
+        int x = high | 7;
+        Assert.assertTrue(bitmap.add(x));
+        Assert.assertFalse(bitmap.add(x));
+        expected.add(x);
+        check(expected, bitmap);
+        check(expected, writeAndRead(bitmap));
+
+        // 读出的数组组还能继续转换
+        Assert.assertTrue(array.add(x));
+        check(expected, array);
+        check(expected, writeAndRead(array));
+    }
+
+    // 多个高位组, 数组和位图混在一起, 包括0和最大值
+    @Test
+    public void testRoundTrip() {
+        Random r = new Random(1);
+        IntBitmap bitmap = new IntBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        Assert.assertTrue(writeAndRead(bitmap).isEmpty());
+        int[] highs = { 0, 1, 100, 7, 0x7fff };
+        for (int round = 0; round < 20000; round++) {
+            int high = highs[r.nextInt(highs.length)];
+            int low = high == 1 ? r.nextInt(1 << 16) : r.nextInt(300);
+            int x = (high << 16) | low;
+            Assert.assertEquals(expected.add(x), bitmap.add(x));
+        }
+        for (int x : new int[] { 0, Integer.MAX_VALUE, 5 << 16 }) {
+            Assert.assertEquals(expected.add(x), bitmap.add(x));
+        }
+        check(expected, bitmap);
+        check(expected, writeAndRead(bitmap));
+        try {
+            bitmap.add(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        }
+    }
+
+    // 复制后两边的修改互不影响
+    @Test
+    public void testCopy() {
+        IntBitmap bitmap = new IntBitmap();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 5000; i++) {
+            bitmap.add(i);
+            expected.add(i);
+        }
+        bitmap.add(1 << 20);
+        expected.add(1 << 20);
+        IntBitmap copy = bitmap.copy();
+        TreeSet<Integer> copyExpected = new TreeSet<>(expected);
+
+        bitmap.add(6000);
+        expected.add(6000);
+        bitmap.add((1 << 20) + 1);
+        expected.add((1 << 20) + 1);
+        copy.add(7000);
+        copyExpected.add(7000);
+        copy.add(9 << 16);
+        copyExpected.add(9 << 16);
+
+        check(expected, bitmap);
+        check(copyExpected, copy);
+        Assert.assertFalse(copy.contains(6000));
+        Assert.assertFalse(bitmap.contains(7000));
+    }
+}
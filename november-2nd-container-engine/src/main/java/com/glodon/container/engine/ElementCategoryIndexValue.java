@@ -6,6 +6,7 @@ import com.glodon.base.util.DataUtils;
 import com.glodon.base.value.Value;
 import com.glodon.base.value.ValueInt;
 import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueNull;
 import com.glodon.base.value.ValueUuid;
 
 import java.nio.ByteBuffer;
@@ -154,8 +155,8 @@ public class ElementCategoryIndexValue extends Value implements ElementCategoryI
             int type = buff.get();
             if (type == ElementCategoryIndexValue.TEST_CATEGORY_SECONDARY_INDEX_TYPE) {
                 ValueUuid categoryIndex = (ValueUuid) DataBuffer.readValue(buff);
-                ValueLong idIndex = (ValueLong) DataBuffer.readValue(buff);
-                return ElementCategoryIndexValue.get(categoryIndex, idIndex);
+                Value idIndex = DataBuffer.readValue(buff);
+                return ElementCategoryIndexValue.get(categoryIndex, idIndex == ValueNull.INSTANCE ? null : (ValueLong) idIndex);
             } else {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Unsupported type {0}", type);
             }
@@ -166,7 +167,17 @@ public class ElementCategoryIndexValue extends Value implements ElementCategoryI
             ElementCategoryIndexValue v = (ElementCategoryIndexValue) obj;
             buff.put((byte) ElementCategoryIndexValue.TEST_CATEGORY_SECONDARY_INDEX_TYPE);
             buff.writeValue(v.categoryIndex);
-            buff.writeValue(v.idIndex);
+            buff.writeValue(v.idIndex == null ? ValueNull.INSTANCE : v.idIndex);
+        }
+
+        // category不同时分隔key只需要右边的category, 没有id的key排在同一category的所有key前面
+        @Override
+        public Object getSeparator(Object left, Object right) {
+            ElementCategoryIndexValue r = (ElementCategoryIndexValue) right;
+            if (r.idIndex != null && !((ElementCategoryIndexValue) left).compareCategory(r)) {
+                return ElementCategoryIndexValue.get(r.categoryIndex);
+            }
+            return right;
         }
     };
 
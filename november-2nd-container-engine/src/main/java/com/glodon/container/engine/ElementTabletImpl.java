@@ -2,15 +2,19 @@ package com.glodon.container.engine;
 
 import com.glodon.base.conf.Config;
 import com.glodon.base.exceptions.UnificationException;
+import com.glodon.base.storage.CursorParameters;
 import com.glodon.base.storage.Storage;
 import com.glodon.base.storage.StorageMap;
 import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.storage.type.StorageDataType;
 import com.glodon.base.table.Scanner;
 import com.glodon.base.table.Tablet;
 import com.glodon.base.util.DataUtils;
 import com.glodon.base.util.TinyLRUCache;
 import com.glodon.base.value.*;
 import com.glodon.storage.engine.StorageImpl;
+import com.glodon.storage.engine.btree.BTreeBulkLoader;
+import com.glodon.storage.engine.btree.BTreeMap;
 
 import java.io.File;
 import java.util.*;
@@ -33,6 +37,8 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
     private final static long DEFAULT_SYNC_SECONDARY_INDEX_RATE = 15 * 1000;
     private final static int DEFAULT_LRU_CAPACITY = 1024 * 1024;
     private final static int THREAD_POOL_SIZE = 5;
+    private final static int SCAN_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private final static int SCAN_PREFETCH_DEPTH = 8;
     private final static String CLUSTERED_INDEX = "CLUSTERED_INDEX";
     private final static String TAG_SECONDARY_INDEX = "TAG_SECONDARY_INDEX";
     private final static String CATEGORY_SECONDARY_INDEX = "CATEGORY_SECONDARY_INDEX";
@@ -172,10 +178,7 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
         try {
             //插入聚集索引
             threadPool.submit(() -> {
-                for (ElementValue v : datas) {
-                    long id = v.getId();
-                    ElementTabletImpl.this.clusteredIndex.put(id, v);
-                }
+                ElementTabletImpl.this.putAllClusteredIndex(datas);
                 latch.countDown();
             });
             //插入tag cache
@@ -198,6 +201,60 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
         }
     }
 
+    /**
+     * 按id排序后批量写入聚集索引, id重复时以后面的数据为准, 空表直接从排好序的数据生成B+树
+     */
+    private void putAllClusteredIndex(ElementValue[] datas) {
+        ElementValue[] sorted = datas.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(ElementValue::getId));
+        Long[] ids = new Long[sorted.length];
+        ElementValue[] values = new ElementValue[sorted.length];
+        int n = 0;
+        for (ElementValue v : sorted) {
+            if (n > 0 && ids[n - 1] == v.getId()) {
+                values[n - 1] = v;
+            } else {
+                ids[n] = v.getId();
+                values[n++] = v;
+            }
+        }
+        if (n < sorted.length) {
+            ids = Arrays.copyOf(ids, n);
+            values = Arrays.copyOf(values, n);
+        }
+        if (this.clusteredIndex.isEmpty()) {
+            List<Map.Entry<Long, ElementValue>> entries = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(ids[i], values[i]));
+            }
+            bulkLoad(this.clusteredIndex, entries);
+        } else {
+            this.clusteredIndex.putAll(ids, values);
+        }
+    }
+
+    /**
+     * 向空的map导入按key升序排列且不重复的数据, 叶子页装满后直接写入chunk, 不经过逐个插入和页分裂
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> void bulkLoad(StorageMap<K, V> map, List<Map.Entry<K, V>> entries) {
+        new BTreeBulkLoader<>((BTreeMap<K, V>) map).load(entries.iterator());
+    }
+
+    /**
+     * 清空二级索引后按key排序批量导入
+     */
+    private static <K> void rebuildSecondaryIndex(StorageMap<K, Value> index, List<K> keys) {
+        StorageDataType keyType = index.getKeyType();
+        keys.sort(keyType::compare);
+        List<Map.Entry<K, Value>> entries = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, ValueNull.INSTANCE));
+        }
+        index.clear();
+        bulkLoad(index, entries);
+    }
+
     @Override
     public void insert(ElementValue data) {
         if (!started) {
@@ -343,7 +400,8 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
             throw UnificationException.get(" tablet[%s] is not started.", this.name);
         }
         DataUtils.checkNotNull(scanner, "scanner");
-        StorageMapCursor<Long, ElementValue> cursor = this.clusteredIndex.cursor();
+        StorageMapCursor<Long, ElementValue> cursor =
+                this.clusteredIndex.cursor(CursorParameters.<Long>create(null).prefetch(SCAN_PREFETCH_DEPTH));
         while (cursor.hasNext()) {
             cursor.next();
             Long id = cursor.getKey();
@@ -352,6 +410,16 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
         }
     }
 
+    @Override
+    public void parallelScan(Scanner<Long, ElementValue> scanner) {
+        if (!started) {
+            throw UnificationException.get(" tablet[%s] is not started.", this.name);
+        }
+        DataUtils.checkNotNull(scanner, "scanner");
+        this.clusteredIndex.parallelScan(CursorParameters.<Long>create(null).prefetch(SCAN_PREFETCH_DEPTH),
+                SCAN_PARALLELISM, scanner);
+    }
+
     @Override
     public Set<ElementValue> in(Value v) {
         Set<ElementValue> elementValues = new HashSet<>();
@@ -361,17 +429,15 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
             if (valueSet != null) {
                 return Collections.unmodifiableSet(valueSet);
             } else {
-                StorageMapCursor<ElementTagIndexValue, Value> cursor = this.tagSecondaryIndex.cursor(start);
+                ElementTagIndexValue end = ElementTagIndexValue.get(start.getTagIndex(), ValueLong.get(Long.MAX_VALUE));
+                StorageMapCursor<ElementTagIndexValue, Value> cursor =
+                        this.tagSecondaryIndex.cursor(CursorParameters.create(start, end));
                 while (cursor.hasNext()) {
                     cursor.next();
                     ElementTagIndexValue tagIndexValue = cursor.getKey();
-                    if (!start.compareTag(tagIndexValue)) {
-                        break;
-                    } else {
-                        ElementValue elementValue = this.select(tagIndexValue.getIdIndex().getLong());
-                        if (elementValue != null) {
-                            elementValues.add(elementValue);
-                        }
+                    ElementValue elementValue = this.select(tagIndexValue.getIdIndex().getLong());
+                    if (elementValue != null) {
+                        elementValues.add(elementValue);
                     }
                 }
             }
@@ -381,17 +447,16 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
             if (valueSet != null) {
                 return Collections.unmodifiableSet(valueSet);
             } else {
-                StorageMapCursor<ElementCategoryIndexValue, Value> cursor = this.categorySecondaryIndex.cursor(start);
+                ElementCategoryIndexValue end = ElementCategoryIndexValue.get(start.getCategoryIndex(),
+                        ValueLong.get(Long.MAX_VALUE));
+                StorageMapCursor<ElementCategoryIndexValue, Value> cursor =
+                        this.categorySecondaryIndex.cursor(CursorParameters.create(start, end));
                 while (cursor.hasNext()) {
                     cursor.next();
                     ElementCategoryIndexValue categoryIndexValue = cursor.getKey();
-                    if (!start.compareCategory(categoryIndexValue)) {
-                        break;
-                    } else {
-                        ElementValue elementValue = this.select(categoryIndexValue.getIdIndex().getLong());
-                        if (elementValue != null) {
-                            elementValues.add(elementValue);
-                        }
+                    ElementValue elementValue = this.select(categoryIndexValue.getIdIndex().getLong());
+                    if (elementValue != null) {
+                        elementValues.add(elementValue);
                     }
                 }
             }
@@ -399,14 +464,24 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
         return elementValues;
     }
 
-    private void loadIndexFromDisk() {
-        this.scan(new Scanner<Long, ElementValue>() {
+    private synchronized void loadIndexFromDisk() {
+        //LRU cache不是线程安全的, 并行的只是读取和反序列化, 同一次扫描收集二级索引的key后重建二级索引
+        final Object mutex = new Object();
+        final List<ElementTagIndexValue> tagKeys = new ArrayList<>();
+        final List<ElementCategoryIndexValue> categoryKeys = new ArrayList<>();
+        this.parallelScan(new Scanner<Long, ElementValue>() {
             @Override
             public void handle(Long aLong, ElementValue value) {
-                addElementTagIndexValue(value);
-                addElementCategoryIndexValue(value);
+                synchronized (mutex) {
+                    addElementTagIndexValue(value);
+                    addElementCategoryIndexValue(value);
+                    tagKeys.add(value.getElementTagIndexValue());
+                    categoryKeys.add(value.getElementCategoryIndex());
+                }
             }
         });
+        rebuildSecondaryIndex(this.tagSecondaryIndex, tagKeys);
+        rebuildSecondaryIndex(this.categorySecondaryIndex, categoryKeys);
     }
 
     private void addElementCategoryIndexValue(ElementValue value) {
@@ -458,34 +533,21 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
     }
 
     private synchronized void syncSecondaryIndex() throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(2);
-        this.tagSecondaryIndex.clear();
-        this.categorySecondaryIndex.clear();
-        this.threadPool.submit(new Runnable() {
+        //一次并行扫描收集两个二级索引的key, 扫描期间旧的二级索引仍然可以查询
+        final Object mutex = new Object();
+        final List<ElementTagIndexValue> tagKeys = new ArrayList<>();
+        final List<ElementCategoryIndexValue> categoryKeys = new ArrayList<>();
+        this.parallelScan(new Scanner<Long, ElementValue>() {
             @Override
-            public void run() {
-                ElementTabletImpl.this.scan(new Scanner<Long, ElementValue>() {
-                    @Override
-                    public void handle(Long aLong, ElementValue value) {
-                        ElementTabletImpl.this.tagSecondaryIndex.put(value.getElementTagIndexValue(), ValueNull.INSTANCE);
-                    }
-                });
-                latch.countDown();
-            }
-        });
-        this.threadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                ElementTabletImpl.this.scan(new Scanner<Long, ElementValue>() {
-                    @Override
-                    public void handle(Long aLong, ElementValue value) {
-                        ElementTabletImpl.this.categorySecondaryIndex.put(value.getElementCategoryIndex(), ValueNull.INSTANCE);
-                    }
-                });
-                latch.countDown();
+            public void handle(Long aLong, ElementValue value) {
+                synchronized (mutex) {
+                    tagKeys.add(value.getElementTagIndexValue());
+                    categoryKeys.add(value.getElementCategoryIndex());
+                }
             }
         });
-        latch.await();
+        rebuildSecondaryIndex(this.tagSecondaryIndex, tagKeys);
+        rebuildSecondaryIndex(this.categorySecondaryIndex, categoryKeys);
     }
 
     Runnable createSyncSecondaryIndexThread(final long syncSecondaryIndexRate) {
@@ -494,8 +556,11 @@ public class ElementTabletImpl implements Tablet<Long, ElementValue> {
             public void run() {
                 while (started && !Thread.currentThread().isInterrupted()) {
                     try {
-                        syncSecondaryIndex();
+                        //启动时loadIndexFromDisk已经重建过二级索引
                         Thread.sleep(syncSecondaryIndexRate);
+                        if (started) {
+                            syncSecondaryIndex();
+                        }
                     } catch (InterruptedException ie) {
                         return;
                     }
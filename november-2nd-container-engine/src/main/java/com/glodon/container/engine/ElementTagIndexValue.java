@@ -6,6 +6,7 @@ import com.glodon.base.util.DataUtils;
 import com.glodon.base.value.Value;
 import com.glodon.base.value.ValueInt;
 import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueNull;
 
 import java.nio.ByteBuffer;
 
@@ -166,8 +167,8 @@ public class ElementTagIndexValue extends Value implements ElementTagIndex {
             int type = buff.get();
             if (type == ElementTagIndexValue.TEST_TAG_SECONDARY_INDEX_TYPE) {
                 ValueInt tagIndex = (ValueInt) DataBuffer.readValue(buff);
-                ValueLong idIndex = (ValueLong) DataBuffer.readValue(buff);
-                return ElementTagIndexValue.get(tagIndex, idIndex);
+                Value idIndex = DataBuffer.readValue(buff);
+                return ElementTagIndexValue.get(tagIndex, idIndex == ValueNull.INSTANCE ? null : (ValueLong) idIndex);
             } else {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Unsupported type {0}", type);
             }
@@ -178,7 +179,17 @@ public class ElementTagIndexValue extends Value implements ElementTagIndex {
             ElementTagIndexValue v = (ElementTagIndexValue) obj;
             buff.put((byte) ElementTagIndexValue.TEST_TAG_SECONDARY_INDEX_TYPE);
             buff.writeValue(v.tagIndex);
-            buff.writeValue(v.idIndex);
+            buff.writeValue(v.idIndex == null ? ValueNull.INSTANCE : v.idIndex);
+        }
+
+        // tag不同时分隔key只需要右边的tag, 没有id的key排在同一tag的所有key前面
+        @Override
+        public Object getSeparator(Object left, Object right) {
+            ElementTagIndexValue r = (ElementTagIndexValue) right;
+            if (r.idIndex != null && !((ElementTagIndexValue) left).compareTag(r)) {
+                return ElementTagIndexValue.get(r.tagIndex);
+            }
+            return right;
         }
     };
 
@@ -0,0 +1,148 @@
+package com.glodon.storage.engine;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.glodon.base.conf.Config;
+import com.glodon.base.logging.Logger;
+import com.glodon.base.logging.LoggerFactory;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.storage.engine.btree.BTreeMap;
+import com.glodon.storage.engine.btree.BTreeStore;
+
+/**
+ * 后台检查点线程, 按未保存的数据量或时间间隔触发保存和压缩, 调用方线程不再阻塞在chunk写入上.
+ * <p>
+ * 保存时序列化脏页期间持有map的排它锁, 这段时间里前台的put/remove都要等待, get不受影响.
+ * 序列化比磁盘快时最多有ChunkWriter.MAX_SEGMENTS个段在写, 之后序列化也要等磁盘, 所以写操作的等待时间
+ * 接近整个保存的时间, 和脏数据量成正比: 50万条脏记录约0.7秒, 200万条(chunk约200MB)约1.4秒.
+ * 需要更短的停顿时调小storage.checkpoint.dirty.size, 让每次保存的脏数据更少.
+ */
+public class CheckpointService extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointService.class);
+
+    private final StorageImpl storage;
+    private final long dirtyMemoryThreshold;
+    private final long checkpointPeriod;
+    private final long loopInterval;
+    private final Semaphore haveWork = new Semaphore(1);
+
+    private volatile boolean stopped;
+    private volatile boolean forced;
+    private long lastCheckpointStartTime = System.currentTimeMillis();
+
+    private volatile long lastCheckpointLatency;
+    private volatile long lastCheckpointBytes;
+    private volatile long checkpointCount;
+
+    CheckpointService(StorageImpl storage, Config config) {
+        super(CheckpointService.class.getSimpleName() + "-" + storage.getStoragePath());
+        setDaemon(true);
+        this.storage = storage;
+        this.dirtyMemoryThreshold = config.getCheckpointDirtySize();
+        this.checkpointPeriod = config.getCheckpointPeriod();
+        this.loopInterval = Math.min(1000, checkpointPeriod);
+    }
+
+    /**
+     * 请求尽快执行一次检查点, 不等待完成
+     */
+    public void requestCheckpoint() {
+        forced = true;
+        haveWork.release(1);
+    }
+
+    void stopService() {
+        stopped = true;
+        haveWork.release(1);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            logger.warn("", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                haveWork.tryAcquire(loopInterval, TimeUnit.MILLISECONDS);
+                haveWork.drainPermits();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (stopped) {
+                break;
+            }
+            if (forced || getUnsavedMemory() >= dirtyMemoryThreshold
+                    || System.currentTimeMillis() - lastCheckpointStartTime >= checkpointPeriod) {
+                forced = false;
+                try {
+                    checkpoint();
+                } catch (Throwable t) {
+                    logger.warn("Failed to checkpoint storage: " + storage.getStoragePath(), t);
+                }
+            }
+        }
+    }
+
+    private void checkpoint() {
+        long start = System.currentTimeMillis();
+        lastCheckpointStartTime = start;
+        long bytes = getTotalSaveBytes();
+        storage.save();
+        bytes = getTotalSaveBytes() - bytes;
+        // 没有脏页时save什么都不做, 不覆盖上次的统计
+        if (bytes > 0) {
+            lastCheckpointLatency = System.currentTimeMillis() - start;
+            lastCheckpointBytes = bytes;
+            checkpointCount++;
+        }
+    }
+
+    private long getUnsavedMemory() {
+        long memory = 0;
+        for (String name : storage.getMapNames()) {
+            BTreeStore store = getBTreeStore(name);
+            if (store != null) {
+                memory += store.getUnsavedMemory();
+            }
+        }
+        return memory;
+    }
+
+    private long getTotalSaveBytes() {
+        long bytes = 0;
+        for (String name : storage.getMapNames()) {
+            BTreeStore store = getBTreeStore(name);
+            if (store != null) {
+                bytes += store.getTotalSaveBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private BTreeStore getBTreeStore(String name) {
+        StorageMap<?, ?> map = storage.getMap(name);
+        return map instanceof BTreeMap ? ((BTreeMap<?, ?>) map).getBTreeStorage() : null;
+    }
+
+    /**
+     * 上次检查点的耗时, 单位毫秒
+     */
+    public long getLastCheckpointLatency() {
+        return lastCheckpointLatency;
+    }
+
+    /**
+     * 上次检查点写入的chunk字节数
+     */
+    public long getLastCheckpointBytes() {
+        return lastCheckpointBytes;
+    }
+
+    public long getCheckpointCount() {
+        return checkpointCount;
+    }
+}
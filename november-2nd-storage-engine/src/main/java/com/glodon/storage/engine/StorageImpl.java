@@ -8,6 +8,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import com.glodon.base.conf.Config;
 import com.glodon.base.storage.*;
 import com.glodon.storage.engine.btree.BTreeMap;
+import com.glodon.storage.engine.btree.PageCache;
+import com.glodon.storage.engine.btree.RedoLog;
 import com.glodon.base.util.DataUtils;
 import com.glodon.base.fs.FilePath;
 import com.glodon.base.fs.FileUtils;
@@ -22,6 +24,10 @@ public final class StorageImpl implements Storage {
     protected final Map<StorageEventListener, StorageEventListener> listeners = new ConcurrentHashMap<>();
     private final Map<String, StorageMap<?, ?>> maps = new ConcurrentHashMap<>();
     private final Config config;
+    private final RedoLog redoLog;
+    private final CheckpointService checkpointService;
+    // 所有map共享一个页缓存, 内存上限是storage.cache.size
+    private final PageCache pageCache;
     private boolean closed;
     private boolean inMemory;
 
@@ -40,6 +46,18 @@ public final class StorageImpl implements Storage {
                 fp.delete();
             }
         }
+        pageCache = !inMemory && config.getStorageCacheSize() > 0 ? new PageCache(config) : null;
+        if (!inMemory && !config.isReadOnly() && config.isRedoLogEnabled()) {
+            redoLog = new RedoLog(storagePath, config);
+        } else {
+            redoLog = null;
+        }
+        if (!inMemory && !config.isReadOnly() && config.isCheckpointServiceEnabled()) {
+            checkpointService = new CheckpointService(this, config);
+            checkpointService.start();
+        } else {
+            checkpointService = null;
+        }
     }
 
     @Override
@@ -65,7 +83,7 @@ public final class StorageImpl implements Storage {
                     if (parameters != null) {
                         config.putAll(parameters);
                     }
-                    map = new BTreeMap<>(name, keyType, valueType, config, this);
+                    map = new BTreeMap<>(name, keyType, valueType, config, this, redoLog, pageCache);
                     maps.put(name, map);
                 }
             }
@@ -106,11 +124,28 @@ public final class StorageImpl implements Storage {
         return inMemory;
     }
 
+    /**
+     * 所有map共享的页缓存, 可以查看每个map的使用情况, 内存中的storage和关闭缓存时返回null
+     */
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    public CheckpointService getCheckpointService() {
+        return checkpointService;
+    }
+
     @Override
     public void save() {
+        if (redoLog != null) {
+            redoLog.rotate();
+        }
         for (StorageMap<?, ?> map : maps.values()) {
             map.save();
         }
+        if (redoLog != null) {
+            redoLog.removeObsoleteSegments();
+        }
     }
 
     @Override
@@ -127,6 +162,7 @@ public final class StorageImpl implements Storage {
             listener.beforeClose(this);
         }
         listeners.clear();
+        stopCheckpointService();
         save();
         closeNow();
     }
@@ -134,10 +170,23 @@ public final class StorageImpl implements Storage {
     @Override
     public void closeNow() {
         closed = true;
+        stopCheckpointService();
         for (StorageMap<?, ?> map : maps.values()) {
             map.close();
         }
         maps.clear();
+        if (pageCache != null) {
+            pageCache.clear();
+        }
+        if (redoLog != null) {
+            redoLog.close();
+        }
+    }
+
+    private void stopCheckpointService() {
+        if (checkpointService != null && checkpointService.isAlive()) {
+            checkpointService.stopService();
+        }
     }
 
     @Override
@@ -189,6 +238,21 @@ public final class StorageImpl implements Storage {
             return set(Config.STORAGE_CACHE_SIZE, mb * 1024 * 1024);
         }
 
+        /**
+         * @param policy LIRS或者TINY_LFU
+         */
+        public StorageBuilder cachePolicy(String policy) {
+            return set(Config.STORAGE_CACHE_POLICY, policy);
+        }
+
+        public StorageBuilder maxResidentMemory(int mb) {
+            return set(Config.STORAGE_MAX_RESIDENT_MEMORY, mb * 1024L * 1024);
+        }
+
+        public StorageBuilder offHeapCacheSize(int mb) {
+            return set(Config.STORAGE_OFF_HEAP_CACHE_SIZE, mb * 1024L * 1024);
+        }
+
         public StorageBuilder compress() {
             return set(Config.STORAGE_COMPRESS, 1);
         }
@@ -197,6 +261,10 @@ public final class StorageImpl implements Storage {
             return set(Config.STORAGE_COMPRESS, 2);
         }
 
+        public StorageBuilder compressMinSavings(int percent) {
+            return set(Config.STORAGE_COMPRESS_MIN_SAVINGS, percent);
+        }
+
         public StorageBuilder pageSplitSize(int pageSplitSize) {
             return set(Config.STORAGE_PAGE_SPLIT_SIZE, pageSplitSize);
         }
@@ -209,6 +277,42 @@ public final class StorageImpl implements Storage {
             return set(Config.STORAGE_MIN_FILL_RATE, minFillRate);
         }
 
+        public StorageBuilder compactRate(int mb) {
+            return set(Config.STORAGE_COMPACT_RATE, mb * 1024 * 1024);
+        }
+
+        public StorageBuilder compactStepPages(int pages) {
+            return set(Config.STORAGE_COMPACT_STEP_PAGES, pages);
+        }
+
+        public StorageBuilder mmap() {
+            return set(Config.STORAGE_MMAP, true);
+        }
+
+        public StorageBuilder bloomFilter(int bitsPerKey) {
+            return set(Config.STORAGE_BLOOM_FILTER_BITS, bitsPerKey);
+        }
+
+        public StorageBuilder redoLog() {
+            return set(Config.STORAGE_REDO_LOG, true);
+        }
+
+        public StorageBuilder redoLogSyncMode(String syncMode) {
+            return set(Config.STORAGE_REDO_LOG_SYNC_MODE, syncMode);
+        }
+
+        public StorageBuilder checkpointService() {
+            return set(Config.STORAGE_CHECKPOINT_SERVICE, true);
+        }
+
+        public StorageBuilder checkpointPeriod(long millis) {
+            return set(Config.STORAGE_CHECKPOINT_PERIOD, millis);
+        }
+
+        public StorageBuilder checkpointDirtySize(int mb) {
+            return set(Config.STORAGE_CHECKPOINT_DIRTY_SIZE, mb * 1024 * 1024);
+        }
+
         public Storage build() {
             return new StorageImpl(this.config);
         }
@@ -0,0 +1,270 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.storage.type.StorageDataType;
+import com.glodon.base.util.DataUtils;
+
+/**
+ * 从已排序的数据自底向上构建BTree, 叶子页按填充率装满后直接写入chunk, 再逐层生成内部结点, 不经过PageOperations.
+ * <p>
+ * chunk写满时用当前已经写入的数据生成一棵临时的树作为该chunk的根, 中途失败时map中是已经导入的前缀,
+ * 临时树的内部结点在下一个chunk中记为已删除页.
+ */
+public class BTreeBulkLoader<K, V> {
+
+    public static final int DEFAULT_FILL_RATE = 90;
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final BTreeMap<K, V> map;
+    private final BTreeStore btreeStore;
+    private final StorageDataType keyType;
+    private final StorageDataType valueType;
+    private final int pageSize;
+    private final int chunkSize;
+
+    // 每一层还没有生成父结点的子页, level 0是叶子页
+    private final List<Level> levels = new ArrayList<>();
+    private final List<Object> leafKeys = new ArrayList<>();
+    private final List<Object> leafValues = new ArrayList<>();
+    private Object lastLeafKey;
+    private int leafMemory;
+    private long count;
+
+    private Chunk chunk;
+    private DataBuffer chunkBody;
+
+    private static class Level {
+        final List<Object> keys = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+        // 叶子页的Bloom过滤器, 内部结点对应null
+        final List<BloomFilter> filters = new ArrayList<>();
+        int memory = PageUtils.PAGE_MEMORY;
+
+        void clear() {
+            keys.clear();
+            positions.clear();
+            filters.clear();
+            memory = PageUtils.PAGE_MEMORY;
+        }
+    }
+
+    public BTreeBulkLoader(BTreeMap<K, V> map) {
+        this(map, DEFAULT_FILL_RATE, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param fillRate  页的填充率, 相对于storage.page.split.size的百分比
+     * @param chunkSize chunk的数据量达到这个大小时写入文件
+     */
+    public BTreeBulkLoader(BTreeMap<K, V> map, int fillRate, int chunkSize) {
+        if (fillRate <= 0 || fillRate > 100) {
+            throw DataUtils.newIllegalArgumentException("Illegal fill rate {0}", fillRate);
+        }
+        this.map = map;
+        this.btreeStore = map.getBTreeStorage();
+        this.keyType = map.getKeyType();
+        this.valueType = map.getValueType();
+        this.pageSize = (int) ((long) btreeStore.getPageSplitSize() * fillRate / 100);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 导入按key升序排列且没有重复的数据, map必须为空
+     *
+     * @return 导入的记录数
+     */
+    public long load(Iterator<? extends Map.Entry<K, V>> entries) {
+        if (map.isReadOnly()) {
+            throw DataUtils.newUnsupportedOperationException("This map is read-only");
+        }
+        if (map.isInMemory()) {
+            // 内存模式没有chunk, 按正常的写入路径处理
+            long n = 0;
+            while (entries.hasNext()) {
+                Map.Entry<K, V> e = entries.next();
+                map.put(e.getKey(), e.getValue());
+                n++;
+            }
+            return n;
+        }
+        synchronized (btreeStore) {
+            map.acquireExclusiveLock();
+            try {
+                if (map.size() > 0) {
+                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                            "Map {0} is not empty", map.getName());
+                }
+                return load0(entries);
+            } finally {
+                map.releaseExclusiveLock();
+            }
+        }
+    }
+
+    private long load0(Iterator<? extends Map.Entry<K, V>> entries) {
+        chunkBody = DataBuffer.create();
+        try {
+            chunk = btreeStore.createChunk();
+            K lastKey = null;
+            while (entries.hasNext()) {
+                Map.Entry<K, V> e = entries.next();
+                K key = e.getKey();
+                V value = e.getValue();
+                DataUtils.checkNotNull(value, "value");
+                if (lastKey != null && keyType.compare(lastKey, key) >= 0) {
+                    throw DataUtils.newIllegalArgumentException("Keys are not sorted at {0}", key);
+                }
+                lastKey = key;
+                leafKeys.add(key);
+                leafValues.add(value);
+                leafMemory += keyType.getMemory(key) + valueType.getMemory(value);
+                if (leafMemory >= pageSize) {
+                    writeLeaf();
+                    if (chunk.getOffset(chunkBody.position()) >= chunkSize) {
+                        writeChunk(false);
+                        chunk = btreeStore.createChunk();
+                    }
+                }
+            }
+            if (!leafKeys.isEmpty()) {
+                writeLeaf();
+            }
+            long rootPos = writeChunk(true);
+
+            Page root = map.getRootPage();
+            root.removePage();
+            map.newRoot(btreeStore.readPage(rootPos));
+            map.addSize(count);
+            if (lastKey != null) {
+                map.setMaxKey(lastKey);
+            }
+            return count;
+        } catch (IllegalStateException e) {
+            throw btreeStore.panic(e);
+        } finally {
+            // 失败时写线程可能还在写这个chunk
+            if (chunk != null) {
+                chunk.cancelWrite();
+            }
+            chunkBody.close();
+        }
+    }
+
+    private void writeLeaf() {
+        BTreeLeaf leaf = BTreeLeaf.create(map, leafKeys.toArray(), leafValues.toArray(), leafKeys.size(), 0);
+        leaf.writeUnsavedRecursive(chunk, chunkBody);
+        count += leafKeys.size();
+        Object firstKey = leafKeys.get(0);
+        if (lastLeafKey != null) {
+            firstKey = keyType.getSeparator(lastLeafKey, firstKey);
+        }
+        lastLeafKey = leafKeys.get(leafKeys.size() - 1);
+        addChild(0, firstKey, leaf.getPos(), BloomFilter.create(map, leaf));
+        leafKeys.clear();
+        leafValues.clear();
+        leafMemory = 0;
+    }
+
+    private void addChild(int level, Object firstKey, long pos, BloomFilter filter) {
+        if (levels.size() == level) {
+            levels.add(new Level());
+        }
+        Level l = levels.get(level);
+        l.keys.add(firstKey);
+        l.positions.add(pos);
+        l.filters.add(filter);
+        l.memory += keyType.getMemory(firstKey) + PageUtils.PAGE_MEMORY_CHILD;
+        if (l.memory >= pageSize && l.positions.size() > 1) {
+            long nodePos = writeNode(l.keys, l.positions, l.filters);
+            Object key = l.keys.get(0);
+            l.clear();
+            addChild(level + 1, key, nodePos, null);
+        }
+    }
+
+    // keys[i]是第i个子页与前一个子页的分隔key, 结点中只保存从第二个子页开始的key
+    private long writeNode(List<Object> keys, List<Long> positions, List<BloomFilter> filters) {
+        int size = positions.size();
+        Object[] nodeKeys = keys.subList(1, size).toArray();
+        PageReference[] children = new PageReference[size];
+        for (int i = 0; i < size; i++) {
+            children[i] = new PageReference(positions.get(i));
+            children[i].bloomFilter = filters.get(i);
+        }
+        BTreeNode node = BTreeNode.create(map, nodeKeys, children, 0);
+        node.writeUnsavedRecursive(chunk, chunkBody);
+        return node.getPos();
+    }
+
+    /**
+     * 把每一层剩下的子页连同下一层生成的结点合并成父结点, 直到只剩一个根页.
+     * 不是最后一个chunk时这些结点是临时的, 之后还会加入新的子页, 所以不清空各层的状态.
+     */
+    private long writeSpine(List<Long> spine) {
+        if (levels.isEmpty()) {
+            BTreeLeaf leaf = BTreeLeaf.createEmpty(map);
+            leaf.writeUnsavedRecursive(chunk, chunkBody);
+            spine.add(leaf.getPos());
+            return leaf.getPos();
+        }
+        Object carryKey = null;
+        long carryPos = 0;
+        BloomFilter carryFilter = null;
+        for (int i = 0, size = levels.size(); i < size; i++) {
+            Level l = levels.get(i);
+            List<Object> keys = new ArrayList<>(l.keys);
+            List<Long> positions = new ArrayList<>(l.positions);
+            List<BloomFilter> filters = new ArrayList<>(l.filters);
+            if (carryPos != 0) {
+                keys.add(carryKey);
+                positions.add(carryPos);
+                filters.add(carryFilter);
+            }
+            if (positions.isEmpty()) {
+                continue;
+            }
+            if (positions.size() == 1) {
+                if (i == size - 1) {
+                    return positions.get(0);
+                }
+                // 只有一个子页时不生成结点, 直接交给上一层
+                carryKey = keys.get(0);
+                carryPos = positions.get(0);
+                carryFilter = filters.get(0);
+                continue;
+            }
+            carryKey = keys.get(0);
+            carryPos = writeNode(keys, positions, filters);
+            carryFilter = null;
+            spine.add(carryPos);
+        }
+        return carryPos;
+    }
+
+    private long writeChunk(boolean last) {
+        List<Long> spine = new ArrayList<>();
+        long rootPos = writeSpine(spine);
+        RedoLog redoLog = map.getRedoLog();
+        long redoLsn = redoLog == null ? 0 : redoLog.getLastLsn();
+        chunk.rootPagePos = rootPos;
+        chunk.mapSize = count;
+        chunk.redoLsn = redoLsn;
+        RemovedPages removedPages = btreeStore.getRemovedPages();
+        btreeStore.writeChunk(chunk, chunkBody, removedPages);
+        if (redoLog != null) {
+            redoLog.setCheckpoint(map.getName(), redoLsn);
+        }
+        chunkBody.clear();
+        if (!last) {
+            for (long pos : spine) {
+                btreeStore.removePage(pos, 0);
+            }
+        }
+        return rootPos;
+    }
+}
@@ -2,22 +2,34 @@ package com.glodon.storage.engine.btree;
 
 import com.glodon.base.storage.CursorParameters;
 import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.storage.type.StorageDataType;
 
 /**
  * Created by liujing on 2023/10/16.
+ * <p>
+ * 按CursorParameters中的from/to遍历, 超出to之后不再读取后面的页.
  */
 public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
 
     protected final BTreeMap<K, ?> map;
     protected final CursorParameters<K> parameters;
+    protected final StorageDataType keyType;
     protected CursorPos pos;
+    // 当前叶子页中不超出to的key的结束位置
+    protected int end;
+    // 当前叶子页中每行是否满足parameters.predicate, 没有过滤条件时为null
+    protected boolean[] matches;
 
     private K key;
     private V value;
+    // value在调用getValue时才读取, 只访问key的遍历不需要解码value
+    private Page valuePage;
+    private int valueIndex;
 
     public BTreeCursor(BTreeMap<K, ?> map, CursorParameters<K> parameters) {
         this.map = map;
         this.parameters = parameters;
+        this.keyType = map.getKeyType();
         min(map.getRootPage(), parameters.from);
     }
 
@@ -28,22 +40,43 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
 
     @Override
     public V getValue() {
+        if (valuePage != null) {
+            if (parameters.allColumns)
+                value = (V) valuePage.getValue(valueIndex, true);
+            else
+                value = (V) valuePage.getValue(valueIndex, parameters.columnIndexes);
+            valuePage = null;
+        }
         return value;
     }
 
     @Override
     public boolean hasNext() {
         while (pos != null) {
-            if (pos.index < pos.page.getKeyCount()) {
-                return true;
-            }
-            pos = pos.parent;
-            if (pos == null) {
-                return false;
-            }
-            if (pos.index < map.getChildPageCount(pos.page)) {
+            if (pos.page.isLeaf()) {
+                if (matches != null) {
+                    while (pos.index < end && !matches[pos.index]) {
+                        pos.index++;
+                    }
+                }
+                if (pos.index < end) {
+                    return true;
+                }
+                if (end < pos.page.getKeyCount()) {
+                    pos = null;
+                    return false;
+                }
+            } else if (pos.index < map.getChildPageCount(pos.page)) {
+                // 子页中的key都不小于它左边的分隔key, 分隔key超出to时后面的子页都不用读
+                if (pos.index > 0 && isAfterTo(pos.page.getKey(pos.index - 1))) {
+                    pos = null;
+                    return false;
+                }
+                prefetch(pos, pos.index + 1);
                 min(pos.page.getChildPage(pos.index++), null);
+                continue;
             }
+            pos = pos.parent;
         }
         return false;
     }
@@ -52,26 +85,74 @@ public class BTreeCursor<K, V> implements StorageMapCursor<K, V> {
     public K next() {
         int index = pos.index++;
         key = (K) pos.page.getKey(index);
-        if (parameters.allColumns)
-            value = (V) pos.page.getValue(index, true);
-        else
-            value = (V) pos.page.getValue(index, parameters.columnIndexes);
+        value = null;
+        valuePage = pos.page;
+        valueIndex = index;
         return key;
     }
 
     protected void min(Page p, K from) {
         while (true) {
             if (p.isLeaf()) {
-                int x = from == null ? 0 : p.binarySearch(from);
-                if (x < 0) {
-                    x = -x - 1;
+                int x = 0;
+                if (from != null) {
+                    x = p.binarySearch(from);
+                    if (x < 0) {
+                        x = -x - 1;
+                    } else if (!parameters.fromInclusive) {
+                        x++;
+                    }
                 }
+                end = getEnd(p);
+                matches = parameters.predicate == null ? null : p.filter(parameters.predicate);
                 pos = new CursorPos(p, x, pos);
                 break;
             }
             int x = from == null ? 0 : p.getPageIndex(from);
             pos = new CursorPos(p, x + 1, pos);
+            prefetch(pos, x + 1);
             p = p.getChildPage(x);
         }
     }
+
+    // 从start开始异步预读prefetchDepth个还没有加载的子页, 已经预读过的和超出to的子页跳过
+    private void prefetch(CursorPos node, int start) {
+        int depth = parameters.prefetchDepth;
+        if (depth <= 0 || node.prefetchEnd >= start + depth / 2 + 1) {
+            return;
+        }
+        Page p = node.page;
+        PageReference[] children = p.getChildren();
+        int end = Math.min(start + depth, map.getChildPageCount(p));
+        BTreeStore btreeStore = map.getBTreeStorage();
+        for (int i = Math.max(start, node.prefetchEnd); i < end; i++) {
+            if (isAfterTo(p.getKey(i - 1))) {
+                break;
+            }
+            if (children[i].page == null) {
+                btreeStore.prefetchPage(children[i].pos);
+            }
+        }
+        node.prefetchEnd = end;
+    }
+
+    private int getEnd(Page p) {
+        int keyCount = p.getKeyCount();
+        if (keyCount == 0 || !isAfterTo(p.getKey(keyCount - 1))) {
+            return keyCount;
+        }
+        int x = p.binarySearch(parameters.to);
+        if (x < 0) {
+            return -x - 1;
+        }
+        return parameters.toInclusive ? x + 1 : x;
+    }
+
+    protected boolean isAfterTo(Object key) {
+        if (parameters.to == null) {
+            return false;
+        }
+        int compare = keyType.compare(key, parameters.to);
+        return compare > 0 || compare == 0 && !parameters.toInclusive;
+    }
 }
@@ -0,0 +1,161 @@
+package com.glodon.storage.engine.btree;
+
+import com.glodon.base.storage.CursorParameters;
+import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.storage.type.StorageDataType;
+
+/**
+ * 从右往左逆序遍历叶子页, 只从根页下降一次, 之后顺序访问相邻的叶子页.
+ * <p>
+ * from是遍历的起点(较大的一端), to是终点(较小的一端), 为null时表示没有边界.
+ * prefetchDepth大于0时进入内部结点后向左预读子页.
+ */
+public class BTreeDescendingCursor<K, V> implements StorageMapCursor<K, V> {
+
+    protected final BTreeMap<K, ?> map;
+    protected final CursorParameters<K> parameters;
+    protected final StorageDataType keyType;
+    // index是下一个要访问的key或子页, 逆序时递减
+    protected CursorPos pos;
+    // 当前叶子页中不超出to的key的起始位置
+    protected int end;
+    // 当前叶子页中每行是否满足parameters.predicate, 没有过滤条件时为null
+    protected boolean[] matches;
+
+    private K key;
+    private V value;
+    // value在调用getValue时才读取, 只访问key的遍历不需要解码value
+    private Page valuePage;
+    private int valueIndex;
+
+    public BTreeDescendingCursor(BTreeMap<K, ?> map, CursorParameters<K> parameters) {
+        this.map = map;
+        this.parameters = parameters;
+        this.keyType = map.getKeyType();
+        max(map.getRootPage(), parameters.from);
+    }
+
+    @Override
+    public K getKey() {
+        return key;
+    }
+
+    @Override
+    public V getValue() {
+        if (valuePage != null) {
+            if (parameters.allColumns)
+                value = (V) valuePage.getValue(valueIndex, true);
+            else
+                value = (V) valuePage.getValue(valueIndex, parameters.columnIndexes);
+            valuePage = null;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pos != null) {
+            if (pos.page.isLeaf()) {
+                if (matches != null) {
+                    while (pos.index >= end && !matches[pos.index]) {
+                        pos.index--;
+                    }
+                }
+                if (pos.index >= end) {
+                    return true;
+                }
+                if (end > 0) {
+                    pos = null;
+                    return false;
+                }
+            } else if (pos.index >= 0) {
+                // 子页中的key都小于它右边的分隔key, 分隔key不大于to时前面的子页都不用读
+                if (isBeforeTo(pos.page.getKey(pos.index))) {
+                    pos = null;
+                    return false;
+                }
+                prefetch(pos, pos.index - 1);
+                max(pos.page.getChildPage(pos.index--), null);
+                continue;
+            }
+            pos = pos.parent;
+        }
+        return false;
+    }
+
+    @Override
+    public K next() {
+        int index = pos.index--;
+        key = (K) pos.page.getKey(index);
+        value = null;
+        valuePage = pos.page;
+        valueIndex = index;
+        return key;
+    }
+
+    protected void max(Page p, K from) {
+        while (true) {
+            if (p.isLeaf()) {
+                int x = p.getKeyCount() - 1;
+                if (from != null) {
+                    x = p.binarySearch(from);
+                    if (x < 0) {
+                        x = -x - 2;
+                    } else if (!parameters.fromInclusive) {
+                        x--;
+                    }
+                }
+                end = getEnd(p);
+                matches = parameters.predicate == null ? null : p.filter(parameters.predicate);
+                pos = new CursorPos(p, x, pos);
+                break;
+            }
+            int x = from == null ? map.getChildPageCount(p) - 1 : p.getPageIndex(from);
+            pos = new CursorPos(p, x - 1, pos);
+            pos.prefetchEnd = x;
+            prefetch(pos, x - 1);
+            p = p.getChildPage(x);
+        }
+    }
+
+    // 从start开始向左异步预读prefetchDepth个还没有加载的子页, prefetchEnd是已经预读过的最左边的子页,
+    // 子页中的key都小于它右边的分隔key, 分隔key不大于to时停止
+    private void prefetch(CursorPos node, int start) {
+        int depth = parameters.prefetchDepth;
+        if (depth <= 0 || start < 0 || node.prefetchEnd <= start - depth / 2) {
+            return;
+        }
+        Page p = node.page;
+        PageReference[] children = p.getChildren();
+        int end = Math.max(start - depth + 1, 0);
+        BTreeStore btreeStore = map.getBTreeStorage();
+        for (int i = Math.min(start, node.prefetchEnd - 1); i >= end; i--) {
+            if (isBeforeTo(p.getKey(i))) {
+                break;
+            }
+            if (children[i].page == null) {
+                btreeStore.prefetchPage(children[i].pos);
+            }
+        }
+        node.prefetchEnd = end;
+    }
+
+    private int getEnd(Page p) {
+        if (p.getKeyCount() == 0 || parameters.to == null) {
+            return 0;
+        }
+        int compare = keyType.compare(p.getKey(0), parameters.to);
+        if (compare > 0 || compare == 0 && parameters.toInclusive) {
+            return 0;
+        }
+        int x = p.binarySearch(parameters.to);
+        if (x < 0) {
+            return -x - 1;
+        }
+        return parameters.toInclusive ? x : x + 1;
+    }
+
+    private boolean isBeforeTo(Object separatorKey) {
+        return parameters.to != null && keyType.compare(separatorKey, parameters.to) <= 0;
+    }
+}
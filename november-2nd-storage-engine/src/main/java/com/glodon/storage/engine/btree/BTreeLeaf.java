@@ -1,7 +1,9 @@
 package com.glodon.storage.engine.btree;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import com.glodon.base.storage.ColumnPredicate;
 import com.glodon.base.storage.DataBuffer;
 import com.glodon.base.util.DataUtils;
 import com.glodon.base.storage.type.StorageDataType;
@@ -13,12 +15,22 @@ import com.glodon.base.storage.type.StorageDataType;
  */
 public class BTreeLeaf extends LocalPage {
 
+    // value的平均长度达到这个值时写入偏移表, 偏移表每个value占4个字节
+    private static final int MIN_LAZY_VALUE_LENGTH = 16;
+
     private Object[] values;
     private volatile long totalCount;
     private ColumnPageReference[] columnPages;
 
+    // 延迟解码: 展开后的页数据和value偏移表的位置, 所有value都解码后置为null
+    private volatile ByteBuffer valueBuff;
+    private int valueStart;
+    private int valueOffsetTable;
+
     private static class ColumnPageReference {
         ColumnPage page;
+        // 过滤时读取了但还没有readColumn的字典编码页
+        ColumnPage unread;
         long pos;
 
         ColumnPageReference(long pos) {
@@ -42,9 +54,53 @@ public class BTreeLeaf extends LocalPage {
 
     @Override
     public Object getValue(int index) {
+        ByteBuffer buff = valueBuff;
+        Object[] values = this.values;
+        Object value = values[index];
+        if (value == null && buff != null) {
+            value = publishValue(values, index, buff, decodeValue(buff, index));
+        }
+        return value;
+    }
+
+    // 解码时写操作可能已经解码了所有value并修改了这个位置, 只有位置仍然为空并且页数据没变时才放入, 否则重新读取
+    private synchronized Object publishValue(Object[] values, int index, ByteBuffer buff, Object value) {
+        if (valueBuff == buff && values[index] == null) {
+            values[index] = value;
+            return value;
+        }
         return values[index];
     }
 
+    private Object decodeValue(ByteBuffer buff, int index) {
+        ByteBuffer b = buff.duplicate();
+        b.limit(valueStart + buff.getInt(valueOffsetTable + index * 4));
+        b.position(valueStart + (index == 0 ? 0 : buff.getInt(valueOffsetTable + (index - 1) * 4)));
+        return bTreeMap.getValueType().read(b);
+    }
+
+    private int getEncodedValueLength(ByteBuffer buff, int index) {
+        int end = buff.getInt(valueOffsetTable + index * 4);
+        return index == 0 ? end : end - buff.getInt(valueOffsetTable + (index - 1) * 4);
+    }
+
+    // 修改或复制values之前解码所有value, 之后不再引用页数据
+    private void decodeAll() {
+        ByteBuffer buff = valueBuff;
+        if (buff == null) {
+            return;
+        }
+        synchronized (this) {
+            for (int i = 0, len = values.length; i < len; i++) {
+                if (values[i] == null) {
+                    values[i] = decodeValue(buff, i);
+                }
+            }
+            valueBuff = null;
+        }
+        recalculateMemory();
+    }
+
     @Override
     public Object getValue(int index, int[] columnIndexes) {
         if (columnPages != null && columnIndexes != null) {
@@ -54,7 +110,7 @@ public class BTreeLeaf extends LocalPage {
                 }
             }
         }
-        return values[index];
+        return getValue(index);
     }
 
     @Override
@@ -66,11 +122,71 @@ public class BTreeLeaf extends LocalPage {
                 }
             }
         }
-        return values[index];
+        return getValue(index);
+    }
+
+    /**
+     * 按列过滤, 列存储时只读取predicate的列, 字典编码的列每个不同值只判断一次, 不用先解码整列
+     */
+    @Override
+    public boolean[] filter(ColumnPredicate predicate) {
+        StorageDataType valueType = bTreeMap.getValueType();
+        int columnIndex = predicate.columnIndex;
+        int rowCount = getKeyCount();
+        boolean[] matches = new boolean[rowCount];
+        if (columnPages != null && columnPages[columnIndex].page == null) {
+            ColumnPageReference ref = columnPages[columnIndex];
+            if (ref.unread == null) {
+                ref.unread = (ColumnPage) bTreeMap.getBTreeStorage().readPage(ref.pos);
+            }
+            ColumnPage page = ref.unread;
+            // 其他线程可能同时读取这一页, 字典中的值和数值读入临时的行对象, 不写入values中的行
+            NumericColumn numeric = page.getNumericColumn();
+            Object scratch = page.values == null && (page.isDictionaryEncoded() || numeric != null)
+                    ? valueType.newRow(columnPages.length) : null;
+            if (scratch != null && numeric != null) {
+                DataBuffer b = DataBuffer.create();
+                try {
+                    for (int row = 0; row < rowCount; row++) {
+                        // 和上一行相同的值不用再判断, 游程编码的列只判断每个游程一次
+                        if (row > 0 && numeric.isSameAsPrevious(row)) {
+                            matches[row] = matches[row - 1];
+                        } else {
+                            numeric.readColumn(valueType, row, scratch, columnIndex, b);
+                            matches[row] = predicate.test(valueType.getColumnValue(scratch, columnIndex));
+                        }
+                    }
+                } finally {
+                    b.close();
+                }
+                return matches;
+            }
+            if (scratch != null) {
+                int[] codes = page.getCodes();
+                // 0: 还没有判断, 1: 满足, 2: 不满足
+                byte[] states = new byte[page.getDictionarySize()];
+                for (int row = 0; row < rowCount; row++) {
+                    int code = codes[row];
+                    if (states[code] == 0) {
+                        valueType.readColumn(page.getDictionaryValue(code), scratch, columnIndex);
+                        boolean match = predicate.test(valueType.getColumnValue(scratch, columnIndex));
+                        states[code] = (byte) (match ? 1 : 2);
+                    }
+                    matches[row] = states[code] == 1;
+                }
+                return matches;
+            }
+            readColumnPage(columnIndex);
+        }
+        for (int row = 0; row < rowCount; row++) {
+            matches[row] = predicate.test(valueType.getColumnValue(getValue(row), columnIndex));
+        }
+        return matches;
     }
 
     @Override
     public Object setValue(int index, Object value) {
+        decodeAll();
         Object old = values[index];
         StorageDataType valueType = bTreeMap.getValueType();
         addMemory(valueType.getMemory(value) - valueType.getMemory(old));
@@ -80,9 +196,10 @@ public class BTreeLeaf extends LocalPage {
 
     @Override
     BTreeLeaf split(int at) {
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
+        decodeAll();
+        int a = at, b = getLength(keys) - a;
+        Object aKeys = newKeys(a);
+        Object bKeys = newKeys(b);
         System.arraycopy(keys, 0, aKeys, 0, a);
         System.arraycopy(keys, a, bKeys, 0, b);
         keys = aKeys;
@@ -94,7 +211,7 @@ public class BTreeLeaf extends LocalPage {
         values = aValues;
 
         totalCount = a;
-        BTreeLeaf newPage = create(bTreeMap, bKeys, bValues, bKeys.length, 0);
+        BTreeLeaf newPage = create(bTreeMap, bKeys, bValues, b, 0);
         recalculateMemory();
         return newPage;
     }
@@ -102,7 +219,7 @@ public class BTreeLeaf extends LocalPage {
     @Override
     public long getTotalCount() {
         if (ASSERT) {
-            long check = keys.length;
+            long check = getLength(keys);
             if (check != totalCount) {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL,
                         "Expected: {0} got: {1}", check, totalCount);
@@ -113,15 +230,16 @@ public class BTreeLeaf extends LocalPage {
 
     @Override
     public Page copyLeaf(int index, Object key, Object value) {
-        int len = keys.length + 1;
-        Object[] newKeys = new Object[len];
+        decodeAll();
+        int len = getLength(keys) + 1;
+        Object newKeys = newKeys(len);
         DataUtils.copyWithGap(keys, newKeys, len - 1, index);
         Object[] newValues = new Object[len];
         DataUtils.copyWithGap(values, newValues, len - 1, index);
-        newKeys[index] = key;
+        setKey(newKeys, index, key);
         newValues[index] = value;
         bTreeMap.incrementSize();
-        addMemory(bTreeMap.getKeyType().getMemory(key) + bTreeMap.getValueType().getMemory(value));
+        addMemory(getKeyMemory(key) + bTreeMap.getValueType().getMemory(value));
         BTreeLeaf newPage = create(bTreeMap, newKeys, newValues, totalCount + 1, getMemory());
         newPage.cachedCompare = cachedCompare;
         newPage.setParentRef(getParentRef());
@@ -130,9 +248,56 @@ public class BTreeLeaf extends LocalPage {
         return newPage;
     }
 
+    /**
+     * 把已排序的[from, to)合并到当前页, 只复制一次, 已经存在的key直接替换value
+     */
+    @Override
+    public Page copyLeaf(Object[] batchKeys, Object[] batchValues, int from, int to) {
+        decodeAll();
+        StorageDataType valueType = bTreeMap.getValueType();
+        int len = values.length;
+        int newLen = len + to - from;
+        Object newKeys = newKeys(newLen);
+        Object[] newValues = new Object[newLen];
+        int mem = getMemory();
+        int added = 0;
+        int i = 0, j = from, n = 0;
+        while (i < len || j < to) {
+            int compare = i == len ? 1 : (j == to ? -1 : compareKey(i, batchKeys[j]));
+            if (compare < 0) {
+                copyKey(keys, i, newKeys, n);
+                newValues[n++] = values[i++];
+                continue;
+            }
+            if (compare == 0) {
+                mem -= valueType.getMemory(values[i++]);
+            } else {
+                mem += getKeyMemory(batchKeys[j]);
+                added++;
+            }
+            mem += valueType.getMemory(batchValues[j]);
+            setKey(newKeys, n, batchKeys[j]);
+            newValues[n++] = batchValues[j++];
+        }
+        if (n < newLen) {
+            Object k = newKeys(n);
+            System.arraycopy(newKeys, 0, k, 0, n);
+            newKeys = k;
+            newValues = Arrays.copyOf(newValues, n);
+        }
+        bTreeMap.addSize(added);
+        BTreeLeaf newPage = create(bTreeMap, newKeys, newValues, n, mem);
+        newPage.cachedCompare = cachedCompare;
+        newPage.setParentRef(getParentRef());
+        newPage.setRef(getRef());
+        removePage();
+        return newPage;
+    }
+
     @Override
     public void remove(int index) {
-        int keyLength = keys.length;
+        decodeAll();
+        int keyLength = values.length;
         super.remove(index);
         Object old = values[index];
         addMemory(-bTreeMap.getValueType().getMemory(old));
@@ -170,15 +335,24 @@ public class BTreeLeaf extends LocalPage {
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
 
         int keyLength = DataUtils.readVarInt(buff);
-        keys = new Object[keyLength];
+        int typePos = buff.position();
         int type = buff.get();
-        buff = expandPage(buff, type, start, pageLength);
+        boolean compressed = PageUtils.isCompressed(type);
+        buff = expandPage(buff, type, typePos, start, pageLength);
 
-        bTreeMap.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, keyLength, type);
         values = new Object[keyLength];
-        bTreeMap.getValueType().read(buff, values, keyLength);
+        if ((type & PageUtils.PAGE_LAZY_VALUES) != 0) {
+            // 偏移表在value之后, 页末尾的int之前, 压缩页展开后的数据正好到页末尾
+            int end = compressed ? buff.limit() : start + pageLength;
+            valueStart = buff.position();
+            valueOffsetTable = end - 4 - keyLength * 4;
+            valueBuff = buff;
+        } else {
+            bTreeMap.getValueType().read(buff, values, keyLength);
+            buff.getInt();
+        }
         totalCount = keyLength;
-        buff.getInt();
         recalculateMemory();
     }
 
@@ -193,15 +367,15 @@ public class BTreeLeaf extends LocalPage {
         int keyLength = DataUtils.readVarInt(buff);
         int columnCount = DataUtils.readVarInt(buff);
         columnPages = new ColumnPageReference[columnCount];
-        keys = new Object[keyLength];
+        int typePos = buff.position();
         int type = buff.get();
         for (int i = 0; i < columnCount; i++) {
             long pos = buff.getLong();
             columnPages[i] = new ColumnPageReference(pos);
         }
-        buff = expandPage(buff, type, start, pageLength);
+        buff = expandPage(buff, type, typePos, start, pageLength);
 
-        bTreeMap.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, keyLength, type);
         values = new Object[keyLength];
         StorageDataType valueType = bTreeMap.getValueType();
         for (int row = 0; row < keyLength; row++) {
@@ -213,7 +387,11 @@ public class BTreeLeaf extends LocalPage {
     }
 
     private void readColumnPage(int columnIndex) {
-        ColumnPage page = (ColumnPage) bTreeMap.getBTreeStorage().readPage(columnPages[columnIndex].pos);
+        ColumnPage page = columnPages[columnIndex].unread;
+        columnPages[columnIndex].unread = null;
+        if (page == null) {
+            page = (ColumnPage) bTreeMap.getBTreeStorage().readPage(columnPages[columnIndex].pos);
+        }
         if (page.values == null) {
             columnPages[columnIndex].page = page;
             page.readColumn(values, columnIndex);
@@ -229,9 +407,12 @@ public class BTreeLeaf extends LocalPage {
             return;
         }
         write(chunk, buff);
+        chunk.flushSegment(buff);
     }
 
     private void write(Chunk chunk, DataBuffer buff) {
+        // 压缩时标记为脏页的叶子页没有被修改过, value可能还没有解码
+        decodeAll();
         switch (bTreeMap.getPageStorageMode()) {
             case COLUMN_STORAGE:
                 writeColumnStorage(chunk, buff);
@@ -244,7 +425,7 @@ public class BTreeLeaf extends LocalPage {
 
     private void writeRowStorage(Chunk chunk, DataBuffer buff) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getLength(keys);
         int type = PageUtils.PAGE_TYPE_LEAF;
         buff.putInt(0);
         buff.put((byte) bTreeMap.getPageStorageMode().ordinal());
@@ -253,16 +434,34 @@ public class BTreeLeaf extends LocalPage {
         int typePos = buff.position();
         buff.put((byte) type);
         int compressStart = buff.position();
-        bTreeMap.getKeyType().write(buff, keys, keyLength);
-        bTreeMap.getValueType().write(buff, values, keyLength);
+        int pageType = writeKeys(buff, keyLength, typePos);
+        StorageDataType valueType = bTreeMap.getValueType();
+        if (keyLength > 1 && getValueMemory() >= keyLength * MIN_LAZY_VALUE_LENGTH) {
+            // 逐个写入value并在后面记录每个value的结束位置
+            int valueStart = buff.position();
+            int[] offsets = new int[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                valueType.write(buff, values[i]);
+                offsets[i] = buff.position() - valueStart;
+            }
+            for (int i = 0; i < keyLength; i++) {
+                buff.putInt(offsets[i]);
+            }
+            pageType |= PageUtils.PAGE_LAZY_VALUES;
+            int oldPos = buff.position();
+            buff.position(typePos).put((byte) pageType);
+            buff.position(oldPos);
+        } else {
+            valueType.write(buff, values, keyLength);
+        }
         buff.putInt(0);
 
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, chunk.getOffset(start), pageLength, checkPos);
 
         updateChunkAndCachePage(chunk, start, pageLength, type);
         removeIfInMemory();
@@ -270,7 +469,7 @@ public class BTreeLeaf extends LocalPage {
 
     private void writeColumnStorage(Chunk chunk, DataBuffer buff) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getLength(keys);
         int type = PageUtils.PAGE_TYPE_LEAF;
         buff.putInt(0);
         buff.put((byte) bTreeMap.getPageStorageMode().ordinal());
@@ -285,18 +484,18 @@ public class BTreeLeaf extends LocalPage {
             buff.putLong(0);
         }
         int compressStart = buff.position();
-        bTreeMap.getKeyType().write(buff, keys, keyLength);
+        int pageType = writeKeys(buff, keyLength, typePos);
         for (int row = 0; row < keyLength; row++) {
             valueType.writeMeta(buff, values[row]);
         }
         buff.putInt(0);
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, chunk.getOffset(start), pageLength, checkPos);
 
         long[] posArray = new long[columnCount];
         for (int col = 0; col < columnCount; col++) {
@@ -314,12 +513,26 @@ public class BTreeLeaf extends LocalPage {
         removeIfInMemory();
     }
 
+    private int getValueMemory() {
+        StorageDataType valueType = bTreeMap.getValueType();
+        int mem = 0;
+        for (int i = 0; i < values.length; i++) {
+            mem += valueType.getMemory(values[i]);
+        }
+        return mem;
+    }
+
     @Override
     protected void recalculateMemory() {
         int mem = recalculateKeysMemory();
-        StorageDataType valueType = bTreeMap.getValueType();
-        for (int i = 0; i < keys.length; i++) {
-            mem += valueType.getMemory(values[i]);
+        ByteBuffer buff = valueBuff;
+        if (buff != null) {
+            // 还没有解码完时按编码后的长度估算, 不随解码变化
+            for (int i = 0; i < values.length; i++) {
+                mem += getEncodedValueLength(buff, i);
+            }
+        } else {
+            mem += getValueMemory();
         }
         addMemory(mem - memory);
     }
@@ -330,6 +543,7 @@ public class BTreeLeaf extends LocalPage {
     }
 
     private BTreeLeaf copy(boolean removePage) {
+        decodeAll();
         BTreeLeaf newPage = create(bTreeMap, keys, values, totalCount, getMemory());
         newPage.cachedCompare = cachedCompare;
         newPage.setParentRef(getParentRef());
@@ -344,10 +558,10 @@ public class BTreeLeaf extends LocalPage {
         return create(map, NULL, NULL, 0, PageUtils.PAGE_MEMORY);
     }
 
-    static BTreeLeaf create(BTreeMap<?, ?> map, Object[] keys, Object[] values, long totalCount,
+    static BTreeLeaf create(BTreeMap<?, ?> map, Object keys, Object[] values, long totalCount,
                             int memory) {
         BTreeLeaf p = new BTreeLeaf(map);
-        p.keys = keys;
+        p.keys = p.toKeys(keys);
         p.values = values;
         p.totalCount = totalCount;
         if (memory == 0) {
@@ -361,10 +575,10 @@ public class BTreeLeaf extends LocalPage {
     @Override
     protected void getPrettyPageInfoRecursive(StringBuilder buff, String indent, PrettyPageInfo info) {
         buff.append(indent).append("values: ");
-        for (int i = 0, len = keys.length; i < len; i++) {
+        for (int i = 0, len = values.length; i < len; i++) {
             if (i > 0)
                 buff.append(", ");
-            buff.append(values[i]);
+            buff.append(getValue(i));
         }
         buff.append('\n');
     }
@@ -1,5 +1,9 @@
 package com.glodon.storage.engine.btree;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -11,6 +15,7 @@ import com.glodon.base.storage.type.ObjectDataType;
 import com.glodon.base.util.DataUtils;
 import com.glodon.storage.engine.btree.PageOperations.Append;
 import com.glodon.storage.engine.btree.PageOperations.Put;
+import com.glodon.storage.engine.btree.PageOperations.PutAll;
 import com.glodon.storage.engine.btree.PageOperations.PutIfAbsent;
 import com.glodon.storage.engine.btree.PageOperations.Remove;
 import com.glodon.storage.engine.btree.PageOperations.Replace;
@@ -20,6 +25,7 @@ import com.glodon.base.storage.page.PageOperation.PageOperationResult;
 import com.glodon.base.storage.page.PageOperationHandler;
 import com.glodon.base.storage.page.PageOperationHandlerFactory;
 import com.glodon.base.storage.type.StorageDataType;
+import com.glodon.base.table.Scanner;
 import com.glodon.base.value.ValueLong;
 
 /**
@@ -35,6 +41,8 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
     private final boolean inMemory;
     private final StorageDataType keyType;
     private final StorageDataType valueType;
+    // key是ValueLong.type时页中用long[]保存key
+    private final boolean longKeyMap;
     private final Config config;
     private final BTreeStore btreeStore;
     private final PageOperationHandlerFactory pohFactory;
@@ -42,6 +50,10 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
     private final AtomicLong size = new AtomicLong(0);
     private PageStorageMode pageStorageMode = PageStorageMode.ROW_STORAGE;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final RedoLog redoLog;
+    // Storage中所有map共享的页缓存, 为null时map自己按配置创建
+    private final PageCache pageCache;
+    private volatile boolean replaying;
 
     private class RootPageReference extends PageReference {
         @Override
@@ -55,6 +67,16 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
     private Page root;
 
     public BTreeMap(String name, StorageDataType keyType, StorageDataType valueType, Config config, Storage storage) {
+        this(name, keyType, valueType, config, storage, null);
+    }
+
+    public BTreeMap(String name, StorageDataType keyType, StorageDataType valueType, Config config, Storage storage,
+                    RedoLog redoLog) {
+        this(name, keyType, valueType, config, storage, redoLog, null);
+    }
+
+    public BTreeMap(String name, StorageDataType keyType, StorageDataType valueType, Config config, Storage storage,
+                    RedoLog redoLog, PageCache pageCache) {
         DataUtils.checkNotNull(name, "name");
         if (keyType == null) {
             keyType = new ObjectDataType();
@@ -65,12 +87,15 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         this.name = name;
         this.keyType = keyType;
         this.valueType = valueType;
+        this.longKeyMap = keyType == ValueLong.type;
         this.storage = storage;
 
         DataUtils.checkNotNull(config, "config");
         this.config = config;
         this.readOnly = config.isReadOnly();
         this.inMemory = config.isInMemory();
+        this.redoLog = redoLog;
+        this.pageCache = pageCache;
 
         PageOperationHandlerFactory pageOperationHandlerFactory = config.getPageOperationHandlerFactory();
         this.pohFactory = pageOperationHandlerFactory == null ? PageOperationHandlerFactory.create(config) : pageOperationHandlerFactory;
@@ -90,6 +115,32 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
             root = BTreeLeaf.createEmpty(this);
             setRootRef(root);
         }
+        if (redoLog != null) {
+            replayRedoLog(lastChunk == null ? 0 : lastChunk.redoLsn);
+        }
+    }
+
+    // 重放最后一个chunk之后的日志记录, 重放期间不再写日志
+    private void replayRedoLog(long fromLsn) {
+        redoLog.setCheckpoint(name, fromLsn);
+        replaying = true;
+        try {
+            redoLog.replay(name, fromLsn, (type, buff) -> {
+                switch (type) {
+                    case RedoLog.TYPE_REMOVE:
+                        remove((K) keyType.read(buff));
+                        break;
+                    case RedoLog.TYPE_CLEAR:
+                        clear();
+                        break;
+                    default:
+                        K key = (K) keyType.read(buff);
+                        put(key, (V) valueType.read(buff));
+                }
+            });
+        } finally {
+            replaying = false;
+        }
     }
 
     private void setRootRef(Page root) {
@@ -119,19 +170,19 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         setRootRef(newRoot);
     }
 
-    private void acquireSharedLock() {
+    void acquireSharedLock() {
         lock.readLock().lock();
     }
 
-    private void releaseSharedLock() {
+    void releaseSharedLock() {
         lock.readLock().unlock();
     }
 
-    private void acquireExclusiveLock() {
+    void acquireExclusiveLock() {
         lock.writeLock().lock();
     }
 
-    private void releaseExclusiveLock() {
+    void releaseExclusiveLock() {
         lock.writeLock().unlock();
     }
 
@@ -147,6 +198,32 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         return btreeStore;
     }
 
+    public RedoLog getRedoLog() {
+        return redoLog;
+    }
+
+    PageCache getPageCache() {
+        return pageCache;
+    }
+
+    long writeRedoLog(int type, Object key, Object value) {
+        if (redoLog == null || replaying) {
+            return 0;
+        }
+        DataBuffer buff = DataBuffer.create();
+        try {
+            if (key != null) {
+                keyType.write(buff, key);
+            }
+            if (value != null) {
+                valueType.write(buff, value);
+            }
+            return redoLog.append(name, type, buff.getAndFlipBuffer());
+        } finally {
+            buff.close();
+        }
+    }
+
     public PageStorageMode getPageStorageMode() {
         return pageStorageMode;
     }
@@ -174,13 +251,19 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
     }
 
     private V binarySearch(Object key, boolean allColumns) {
-        Page p = root.gotoLeafPage(key);
+        Page p = root.gotoLeafPageIfMayContain(key);
+        if (p == null) {
+            return null;
+        }
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, allColumns) : null;
     }
 
     private V binarySearch(Object key, int[] columnIndexes) {
-        Page p = root.gotoLeafPage(key);
+        Page p = root.gotoLeafPageIfMayContain(key);
+        if (p == null) {
+            return null;
+        }
         int index = p.binarySearch(key);
         return index >= 0 ? (V) p.getValue(index, columnIndexes) : null;
     }
@@ -277,6 +360,10 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         size.incrementAndGet();
     }
 
+    void addSize(long delta) {
+        size.addAndGet(delta);
+    }
+
     @Override
     public void decrementSize() {
         size.decrementAndGet();
@@ -311,11 +398,130 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         return new BTreeCursor<>(this, parameters);
     }
 
+    @Override
+    public StorageMapCursor<K, V> cursor(CursorParameters<K> parameters, boolean descending) {
+        return descending ? new BTreeDescendingCursor<>(this, parameters) : new BTreeCursor<>(this, parameters);
+    }
+
+    /**
+     * 按根页和上层结点的分隔key把parameters的范围切分成最多parallelism个互不相交的区间,
+     * 分隔key不够时逐层往下取, 区间是左闭右开的, 最后一个区间保留parameters.to的边界.
+     */
+    public List<CursorParameters<K>> split(CursorParameters<K> parameters, int parallelism) {
+        List<Object> separators = new ArrayList<>();
+        if (parallelism > 1) {
+            Page p = root;
+            for (int depth = 1; ; depth++) {
+                separators.clear();
+                boolean deeper = collectSeparators(p, depth, parameters, separators);
+                if (separators.size() + 1 >= parallelism || !deeper) {
+                    break;
+                }
+            }
+        }
+        int size = separators.size();
+        int count = Math.min(parallelism, size + 1);
+        List<CursorParameters<K>> ranges = new ArrayList<>(Math.max(count, 1));
+        K from = parameters.from;
+        boolean fromInclusive = parameters.fromInclusive;
+        for (int i = 1; i < count; i++) {
+            // 从分隔key中均匀地选出count - 1个
+            K key = (K) separators.get((int) ((long) i * (size + 1) / count) - 1);
+            ranges.add(parameters.range(from, fromInclusive, key, false));
+            from = key;
+            fromInclusive = true;
+        }
+        ranges.add(parameters.range(from, fromInclusive, parameters.to, parameters.toInclusive));
+        return ranges;
+    }
+
+    // 按顺序收集depth层以内在(from, to)之间的分隔key, 返回是否还有更深的结点
+    private boolean collectSeparators(Page p, int depth, CursorParameters<K> parameters, List<Object> separators) {
+        if (p.isLeaf()) {
+            return false;
+        }
+        boolean deeper = false;
+        int keyCount = p.getKeyCount();
+        for (int i = 0, size = getChildPageCount(p); i < size; i++) {
+            // 第i个子页中的key在[key(i - 1), key(i))之间
+            boolean belowFrom = i < keyCount && parameters.from != null
+                    && keyType.compare(p.getKey(i), parameters.from) <= 0;
+            boolean aboveTo = i > 0 && parameters.to != null
+                    && keyType.compare(p.getKey(i - 1), parameters.to) >= 0;
+            if (aboveTo) {
+                break;
+            }
+            if (!belowFrom) {
+                if (depth > 1) {
+                    deeper |= collectSeparators(p.getChildPage(i), depth - 1, parameters, separators);
+                } else {
+                    deeper = true;
+                }
+            }
+            if (i < keyCount) {
+                Object key = p.getKey(i);
+                if ((parameters.from == null || keyType.compare(key, parameters.from) > 0)
+                        && (parameters.to == null || keyType.compare(key, parameters.to) < 0)) {
+                    separators.add(key);
+                }
+            }
+        }
+        return deeper;
+    }
+
+    /**
+     * 把范围切分成多个区间后用fork-join并行扫描, 每个区间使用自己的cursor.
+     * scanner会在多个线程中同时调用, 同一个区间内的记录按key的顺序回调.
+     */
+    @Override
+    public void parallelScan(CursorParameters<K> parameters, int parallelism, Scanner<K, V> scanner) {
+        List<CursorParameters<K>> ranges = split(parameters, parallelism);
+        if (ranges.size() == 1) {
+            scan(ranges.get(0), scanner);
+        } else {
+            ForkJoinPool.commonPool().invoke(new ScanTask(ranges, 0, ranges.size(), scanner));
+        }
+    }
+
+    private void scan(CursorParameters<K> parameters, Scanner<K, V> scanner) {
+        StorageMapCursor<K, V> cursor = cursor(parameters);
+        while (cursor.hasNext()) {
+            cursor.next();
+            scanner.handle(cursor.getKey(), cursor.getValue());
+        }
+    }
+
+    private class ScanTask extends RecursiveAction {
+
+        private final List<CursorParameters<K>> ranges;
+        private final int start;
+        private final int end;
+        private final Scanner<K, V> scanner;
+
+        ScanTask(List<CursorParameters<K>> ranges, int start, int end, Scanner<K, V> scanner) {
+            this.ranges = ranges;
+            this.start = start;
+            this.end = end;
+            this.scanner = scanner;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                scan(ranges.get(start), scanner);
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new ScanTask(ranges, start, mid, scanner), new ScanTask(ranges, mid, end, scanner));
+        }
+    }
+
     @Override
     public void clear() {
         checkWrite();
         try {
             acquireExclusiveLock();
+            writeRedoLog(RedoLog.TYPE_CLEAR, null, null);
             root.removeAllRecursive();
             size.set(0);
             maxKey.set(0);
@@ -327,13 +533,19 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
 
     @Override
     public void remove() {
-        try {
-            acquireExclusiveLock();
-
-            btreeStore.remove();
-            closeMap();
-        } finally {
-            releaseExclusiveLock();
+        // 和保存的加锁顺序一致, 先进入btreeStore的监视器再加排它锁
+        synchronized (btreeStore) {
+            try {
+                acquireExclusiveLock();
+                long lsn = writeRedoLog(RedoLog.TYPE_CLEAR, null, null);
+                if (lsn > 0) {
+                    redoLog.setCheckpoint(name, lsn);
+                }
+                btreeStore.remove();
+                closeMap();
+            } finally {
+                releaseExclusiveLock();
+            }
         }
     }
 
@@ -344,12 +556,15 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
 
     @Override
     public void close() {
-        try {
-            acquireExclusiveLock();
-            closeMap();
-            btreeStore.close();
-        } finally {
-            releaseExclusiveLock();
+        // 关闭时要保存, 和保存的加锁顺序一致, 否则和后台的检查点线程互相等待
+        synchronized (btreeStore) {
+            try {
+                acquireExclusiveLock();
+                closeMap();
+                btreeStore.close();
+            } finally {
+                releaseExclusiveLock();
+            }
         }
     }
 
@@ -359,12 +574,7 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
 
     @Override
     public void save() {
-        try {
-            acquireSharedLock();
-            btreeStore.save();
-        } finally {
-            releaseSharedLock();
-        }
+        btreeStore.save();
     }
 
     public int getChildPageCount(Page p) {
@@ -438,6 +648,29 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         return runPageOperation(put);
     }
 
+    /**
+     * 批量写入, keys必须按升序排列且没有重复, 每个叶子页只加锁和复制一次
+     */
+    @Override
+    public void putAll(K[] keys, V[] values) {
+        checkWrite();
+        if (keys.length != values.length) {
+            throw DataUtils.newIllegalArgumentException("Keys length {0} != values length {1}",
+                    keys.length, values.length);
+        }
+        for (int i = 0, len = keys.length; i < len; i++) {
+            DataUtils.checkNotNull(values[i], "value");
+            if (i > 0 && keyType.compare(keys[i - 1], keys[i]) >= 0) {
+                throw DataUtils.newIllegalArgumentException("Keys are not sorted at index {0}", i);
+            }
+        }
+        int from = 0;
+        while (from < keys.length) {
+            PutAll<K, V> putAll = new PutAll<>(this, keys, values, from, null);
+            from = runPageOperation(putAll);
+        }
+    }
+
     @Override
     public V putIfAbsent(K key, V value) {
         return putIfAbsent0(key, value, null);
@@ -505,6 +738,7 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
     private <R> R runPageOperation(SingleWrite<?, ?, R> po) {
         PageOperationHandler poHandler = getPageOperationHandler(false);
         if (po.run(poHandler) == PageOperationResult.SUCCEEDED) {
+            commitRedoLog(po);
             return po.getResult();
         }
         poHandler = getPageOperationHandler(true);
@@ -512,13 +746,22 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
             PageOperation.Listener<R> listener = getPageOperationListener();
             po.setResultHandler(listener);
             poHandler.handlePageOperation(po);
-            return listener.await();
+            R result = listener.await();
+            commitRedoLog(po);
+            return result;
         } else {
+            // 异步写入不等待日志落盘, 由后台线程定期同步
             poHandler.handlePageOperation(po);
             return null;
         }
     }
 
+    private void commitRedoLog(SingleWrite<?, ?, ?> po) {
+        if (redoLog != null) {
+            redoLog.commit(po.getRedoLsn());
+        }
+    }
+
     private PageOperationHandler getPageOperationHandler(boolean useThreadPool) {
         Object t = Thread.currentThread();
         if (t instanceof PageOperationHandler) {
@@ -555,6 +798,10 @@ public final class BTreeMap<K, V> implements StorageMap<K, V> {
         return name;
     }
 
+    public boolean isLongKeyMap() {
+        return longKeyMap;
+    }
+
     @Override
     public StorageDataType getKeyType() {
         return keyType;
@@ -40,19 +40,24 @@ public class BTreeNode extends LocalPage {
         if (ref.page != null) {
             return ref.page;
         } else {
-            Page p = bTreeMap.getBTreeStorage().readPage(ref.pos);
-            ref.replacePage(p);
-            p.setRef(ref);
-            p.setParentRef(getRef());
+            BTreeStore btreeStore = bTreeMap.getBTreeStorage();
+            Page p = btreeStore.readPage(ref.pos);
+            Page attached = ref.attachPage(p, getRef());
+            if (attached != p) {
+                return attached;
+            }
+            if (p.isLeaf()) {
+                btreeStore.addResidentLeaf(p);
+            }
             return p;
         }
     }
 
     @Override
     BTreeNode split(int at) {
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
+        int a = at, b = getLength(keys) - a;
+        Object aKeys = newKeys(a);
+        Object bKeys = newKeys(b - 1);
         System.arraycopy(keys, 0, aKeys, 0, a);
         System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
         keys = aKeys;
@@ -81,10 +86,12 @@ public class BTreeNode extends LocalPage {
     @Override
     void setAndInsertChild(int index, PageOperations.TmpNodePage tmpNodePage) {
         children = children.clone(); // 必须弄一份新的，否则影响其他线程
+        int filterMemory = getBloomFilterMemory(children[index]);
         children[index] = tmpNodePage.right;
-        Object[] newKeys = new Object[keys.length + 1];
-        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
-        newKeys[index] = tmpNodePage.key;
+        int keyLength = getLength(keys);
+        Object newKeys = newKeys(keyLength + 1);
+        DataUtils.copyWithGap(keys, newKeys, keyLength, index);
+        setKey(newKeys, index, tmpNodePage.key);
         keys = newKeys;
 
         int childCount = children.length;
@@ -95,14 +102,14 @@ public class BTreeNode extends LocalPage {
 
         tmpNodePage.left.page.setParentRef(getRef());
         tmpNodePage.right.page.setParentRef(getRef());
-        addMemory(bTreeMap.getKeyType().getMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD);
+        addMemory(getKeyMemory(tmpNodePage.key) + PageUtils.PAGE_MEMORY_CHILD - filterMemory);
     }
 
     @Override
     public void remove(int index) {
-        if (keys.length > 0) // 删除最后一个children时，keys已经空了
+        if (getLength(keys) > 0) // 删除最后一个children时，keys已经空了
             super.remove(index);
-        addMemory(-PageUtils.PAGE_MEMORY_CHILD);
+        addMemory(-PageUtils.PAGE_MEMORY_CHILD - getBloomFilterMemory(children[index]));
         int childCount = children.length;
         PageReference[] newChildren = new PageReference[childCount - 1];
         DataUtils.copyExcept(children, newChildren, childCount, index);
@@ -118,7 +125,7 @@ public class BTreeNode extends LocalPage {
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
 
         int keyLength = DataUtils.readVarInt(buff);
-        keys = new Object[keyLength];
+        int typePos = buff.position();
         int type = buff.get();
         children = new PageReference[keyLength + 1];
         long[] p = new long[keyLength + 1];
@@ -131,21 +138,27 @@ public class BTreeNode extends LocalPage {
                 buff.getInt(); // replicationHostIds
             children[i] = new PageReference(null, p[i]);
         }
-        buff = expandPage(buff, type, start, pageLength);
+        if ((type & PageUtils.PAGE_BLOOM_FILTERS) != 0) {
+            for (int i = 0; i <= keyLength; i++) {
+                children[i].bloomFilter = BloomFilter.read(buff);
+            }
+        }
+        buff = expandPage(buff, type, typePos, start, pageLength);
 
-        bTreeMap.getKeyType().read(buff, keys, keyLength);
+        readKeys(buff, keyLength, type);
         recalculateMemory();
     }
 
-    private int write(Chunk chunk, DataBuffer buff) {
+    private void write(Chunk chunk, DataBuffer buff) {
         int start = buff.position();
-        int keyLength = keys.length;
+        int keyLength = getLength(keys);
         buff.putInt(0);
         int checkPos = buff.position();
         buff.putShort((short) 0).putVarInt(keyLength);
         int typePos = buff.position();
         int type = PageUtils.PAGE_TYPE_NODE;
-        buff.put((byte) type);
+        boolean bloomFilters = bTreeMap.getBTreeStorage().getBloomFilterBits() > 0;
+        buff.put((byte) (bloomFilters ? type | PageUtils.PAGE_BLOOM_FILTERS : type));
         writeChildrenPositions(buff);
         for (int i = 0; i <= keyLength; i++) {
             if (children[i].isLeafPage()) {
@@ -155,27 +168,37 @@ public class BTreeNode extends LocalPage {
                 buff.put((byte) 1);
             }
         }
+        if (bloomFilters) {
+            // 内存中的叶子页在这次保存中写入, 按当前的key重新生成; 不在内存中的叶子页沿用读入的过滤器
+            for (int i = 0; i <= keyLength; i++) {
+                PageReference ref = children[i];
+                if (ref.page != null && ref.page.isLeaf()) {
+                    ref.bloomFilter = BloomFilter.create(bTreeMap, ref.page);
+                }
+                BloomFilter.write(buff, ref.isLeafPage() ? ref.bloomFilter : null);
+            }
+            recalculateMemory();
+        }
         int compressStart = buff.position();
-        bTreeMap.getKeyType().write(buff, keys, keyLength);
+        int pageType = writeKeys(buff, keyLength, typePos);
 
-        compressPage(buff, compressStart, type, typePos);
+        compressPage(buff, compressStart, pageType, typePos);
 
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, chunk.getOffset(start), pageLength, checkPos);
 
         updateChunkAndCachePage(chunk, start, pageLength, type);
 
         bTreeMap.getBTreeStorage().cachePage(pos, this, getMemory());
 
         removeIfInMemory();
-        return typePos + 1;
     }
 
     private void writeChildrenPositions(DataBuffer buff) {
-        for (int i = 0, len = keys.length; i <= len; i++) {
+        for (int i = 0, len = getLength(keys); i <= len; i++) {
             buff.putLong(children[i].pos);
         }
     }
@@ -185,7 +208,7 @@ public class BTreeNode extends LocalPage {
         if (pos != 0) {
             return;
         }
-        int patch = write(chunk, buff);
+        // 先写子页, 写结点时子页的位置都已经确定, 写入的数据不用再回头修改, 可以分段写入文件
         for (int i = 0, len = children.length; i < len; i++) {
             Page p = children[i].page;
             if (p != null) {
@@ -193,10 +216,8 @@ public class BTreeNode extends LocalPage {
                 children[i].pos = p.pos;
             }
         }
-        int old = buff.position();
-        buff.position(patch);
-        writeChildrenPositions(buff);
-        buff.position(old);
+        write(chunk, buff);
+        chunk.flushSegment(buff);
     }
 
     @Override
@@ -209,11 +230,73 @@ public class BTreeNode extends LocalPage {
                             "Page not written");
                 }
                 ref.page.writeEnd();
-                children[i] = new PageReference(null, ref.pos);
+                PageReference newRef = new PageReference(null, ref.pos);
+                newRef.bloomFilter = ref.bloomFilter;
+                children[i] = newRef;
             }
         }
     }
 
+    /**
+     * 把干净的叶子页从树中换出, 换成不带页的新引用, 下次访问时重新从缓存或者文件读取.
+     * 必须持有map的排它锁. 旧引用标记为结构已改变, 持有旧引用等待重试的写操作会从根页重新查找.
+     *
+     * @param cache 不为null时只换出已经不在这个缓存中的叶子页
+     * @return 换出后仍然在树中的叶子页占用的内存
+     */
+    long unswizzleLeaves(PageCache.MapCache cache) {
+        long resident = 0;
+        for (int i = 0, len = children.length; i < len; i++) {
+            PageReference ref = children[i];
+            Page p = ref.page;
+            if (p == null) {
+                continue;
+            }
+            if (p.isNode()) {
+                resident += ((BTreeNode) p).unswizzleLeaves(cache);
+            } else if (isClean(ref, p) && (cache == null || !cache.containsKey(ref.pos))) {
+                unswizzle(i, ref);
+            } else {
+                resident += p.getMemory();
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * 不管页缓存, 从左到右换出干净的叶子页, 直到释放了toRelease字节. 必须持有map的排它锁.
+     *
+     * @return 释放的内存
+     */
+    long releaseLeaves(long toRelease) {
+        long released = 0;
+        for (int i = 0, len = children.length; i < len && released < toRelease; i++) {
+            PageReference ref = children[i];
+            Page p = ref.page;
+            if (p == null) {
+                continue;
+            }
+            if (p.isNode()) {
+                released += ((BTreeNode) p).releaseLeaves(toRelease - released);
+            } else if (isClean(ref, p)) {
+                released += p.getMemory();
+                unswizzle(i, ref);
+            }
+        }
+        return released;
+    }
+
+    private static boolean isClean(PageReference ref, Page p) {
+        return p.getPos() != 0 && p.getPos() == ref.pos && ref.lockOwner == null;
+    }
+
+    private void unswizzle(int index, PageReference ref) {
+        PageReference newRef = new PageReference(null, ref.pos);
+        newRef.bloomFilter = ref.bloomFilter;
+        ref.setDataStructureChanged(true);
+        children[index] = newRef;
+    }
+
     @Override
     public int getRawChildPageCount() {
         return children.length;
@@ -223,9 +306,17 @@ public class BTreeNode extends LocalPage {
     protected void recalculateMemory() {
         int mem = recalculateKeysMemory();
         mem += this.getRawChildPageCount() * PageUtils.PAGE_MEMORY_CHILD;
+        for (PageReference ref : children) {
+            mem += getBloomFilterMemory(ref);
+        }
         addMemory(mem - memory);
     }
 
+    private static int getBloomFilterMemory(PageReference ref) {
+        BloomFilter filter = ref.bloomFilter;
+        return filter == null ? 0 : filter.getMemory();
+    }
+
     @Override
     public BTreeNode copy() {
         return copy(true);
@@ -265,9 +356,9 @@ public class BTreeNode extends LocalPage {
         removePage();
     }
 
-    static BTreeNode create(BTreeMap<?, ?> map, Object[] keys, PageReference[] children, int memory) {
+    static BTreeNode create(BTreeMap<?, ?> map, Object keys, PageReference[] children, int memory) {
         BTreeNode p = new BTreeNode(map);
-        p.keys = keys;
+        p.keys = p.toKeys(keys);
         p.children = children;
         if (memory == 0) {
             p.recalculateMemory();
@@ -280,8 +371,8 @@ public class BTreeNode extends LocalPage {
     @Override
     protected void getPrettyPageInfoRecursive(StringBuilder buff, String indent, PrettyPageInfo info) {
         if (children != null) {
-            buff.append(indent).append("children: ").append(keys.length + 1).append('\n');
-            for (int i = 0, len = keys.length; i <= len; i++) {
+            buff.append(indent).append("children: ").append(getLength(keys) + 1).append('\n');
+            for (int i = 0, len = getLength(keys); i <= len; i++) {
                 buff.append('\n');
                 if (children[i].page != null) {
                     children[i].page.getPrettyPageInfoRecursive(indent + "  ", info);
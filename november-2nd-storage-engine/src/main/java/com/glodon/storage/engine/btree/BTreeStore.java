@@ -2,13 +2,15 @@ package com.glodon.storage.engine.btree;
 
 import java.io.File;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.glodon.base.storage.DataBuffer;
-import com.glodon.base.compress.CompressDeflate;
-import com.glodon.base.compress.CompressLZF;
-import com.glodon.base.compress.Compressor;
 import com.glodon.base.util.DataUtils;
-import com.glodon.base.storage.cache.CacheLongKeyLIRS;
 import com.glodon.base.fs.FileStorage;
 import com.glodon.base.fs.FileUtils;
 
@@ -19,37 +21,64 @@ public final class BTreeStore {
     private final ChunkManager chunkManager;
     private final int pageSplitSize;
     private final int minFillRate;
+    private final int compactRate;
+    private final int compactStepPages;
+    // chunk文件写入后不再修改页数据, 可以直接映射读取
+    private final boolean mmap;
+    private final int bloomFilterBits;
 
     private final UncaughtExceptionHandler backgroundExceptionHandler;
-    private final CacheLongKeyLIRS<Page> cache;
+    private final PageCache.MapCache cache;
+    private final Set<Long> prefetchingPages = ConcurrentHashMap.newKeySet();
+    private final ChunkWriter chunkWriter = new ChunkWriter();
     private final int compressionLevel;
-    private Compressor compressorFast;
-    private Compressor compressorHigh;
+    private final int compressMinSavings;
+    // 连续不可压缩的页数, 不要求精确, 不用同步
+    private int incompressiblePages;
 
     private boolean closed;
     private volatile boolean hasUnsavedChanges;
+    private final AtomicLong unsavedMemory = new AtomicLong();
+    private volatile long lastSaveTime;
+    private volatile long lastSaveBytes;
+    private final AtomicLong totalSaveBytes = new AtomicLong();
+    // 树中叶子页占用内存的上限, 超出时在后台换出干净的叶子页, 0表示不换出
+    private final long maxResidentMemory;
+    private final AtomicLong residentMemory = new AtomicLong();
+    // 等待执行的换出请求数, 不为0时已经交给了PageSweeper
+    private final AtomicInteger sweepRequests = new AtomicInteger();
+    // 从序列化脏页到chunk写入文件之间为true, 这期间新的页位置还不能读取
+    private volatile boolean saving;
+    private long compactBudget;
+    private long lastCompactTime = System.currentTimeMillis();
 
     BTreeStore(BTreeMap<?, ?> bTreeMap) {
         this.bTreeMap = bTreeMap;
         pageSplitSize = bTreeMap.getConfig().getStoragePageSplitSize();
         this.minFillRate = bTreeMap.getConfig().getStorageMinFillRate();
+        this.compactRate = bTreeMap.getConfig().getCompactRate();
+        this.compactStepPages = bTreeMap.getConfig().getCompactStepPages();
+        this.mmap = bTreeMap.getConfig().isMmapEnabled();
+        this.bloomFilterBits = bTreeMap.getConfig().getBloomFilterBits();
         this.compressionLevel = bTreeMap.getConfig().getCompressionLevel();
+        this.compressMinSavings = bTreeMap.getConfig().getCompressMinSavings();
         this.backgroundExceptionHandler = bTreeMap.getConfig().getStorageBackgroundExceptionHandler();
         this.chunkManager = new ChunkManager(this);
         if (bTreeMap.isInMemory()) {
+            maxResidentMemory = 0;
             cache = null;
             mapBaseDir = null;
             return;
         }
 
-        int cacheSize = bTreeMap.getConfig().getStorageCacheSize();
-        if (cacheSize > 0) {
-            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
-            cc.maxMemory = cacheSize;
-            cache = new CacheLongKeyLIRS<>(cc);
-        } else {
-            cache = null;
+        PageCache pageCache = bTreeMap.getPageCache();
+        if (pageCache == null) {
+            if (bTreeMap.getConfig().getStorageCacheSize() > 0) {
+                pageCache = new PageCache(bTreeMap.getConfig());
+            }
         }
+        cache = pageCache == null ? null : pageCache.register(bTreeMap);
+        maxResidentMemory = bTreeMap.getConfig().getMaxResidentMemory();
         mapBaseDir = bTreeMap.getStorage().getStoragePath() + File.separator + bTreeMap.getName();
         if (!FileUtils.exists(mapBaseDir)) {
             FileUtils.createDirectories(mapBaseDir);
@@ -92,6 +121,30 @@ public final class BTreeStore {
         return readLocalPage(pos);
     }
 
+    /**
+     * 异步读取页并放入缓存, 没有缓存、页已经在缓存中或者正在预读时忽略
+     */
+    public void prefetchPage(long pos) {
+        if (cache == null || closed || cache.containsKey(pos) || !prefetchingPages.add(pos)) {
+            return;
+        }
+        if (!PagePrefetcher.prefetch(this, pos)) {
+            prefetchingPages.remove(pos);
+        }
+    }
+
+    void readPageQuietly(long pos) {
+        try {
+            if (!closed) {
+                readPage(pos);
+            }
+        } catch (Throwable t) {
+            // 预读失败不影响游标, 页所在的chunk可能已经被压缩删除, 真正访问时会重新读取
+        } finally {
+            prefetchingPages.remove(pos);
+        }
+    }
+
     private Page getPageFromCache(long pos) {
         return cache == null ? null : cache.get(pos);
     }
@@ -100,10 +153,15 @@ public final class BTreeStore {
         Page p = getPageFromCache(pos);
         if (p != null)
             return p;
-        Chunk c = getChunk(pos);
-        long filePos = Chunk.getFilePos(PageUtils.getPageOffset(pos));
-        int pageLength = c.getPageLength(pos);
-        p = Page.read(bTreeMap, c.fileStorage, pos, filePos, pageLength);
+        ByteBuffer buff = cache == null ? null : cache.getSerialized(pos);
+        if (buff != null) {
+            p = Page.read(bTreeMap, pos, buff);
+        } else {
+            Chunk c = getChunk(pos);
+            long filePos = Chunk.getFilePos(PageUtils.getPageOffset(pos));
+            int pageLength = c.getPageLength(pos);
+            p = Page.read(bTreeMap, c.fileStorage, pos, filePos, pageLength, mmap);
+        }
         cachePage(pos, p, p.getMemory());
         return p;
     }
@@ -118,35 +176,141 @@ public final class BTreeStore {
             if (PageUtils.isLeafPage(pos)) {
                 cache.remove(pos);
             }
+            cache.removeSerialized(pos);
+        }
+    }
+
+    /**
+     * 这个map在页缓存中的命中次数和占用的内存, 没有缓存时返回null
+     */
+    public PageCache.MapCache getPageCache() {
+        return cache;
+    }
+
+    /**
+     * 从文件或者缓存中读取的叶子页放入树中后调用, 超出上限时在后台换出
+     */
+    void addResidentLeaf(Page p) {
+        if (maxResidentMemory > 0 && residentMemory.addAndGet(p.getMemory()) > maxResidentMemory
+                && sweepRequests.get() == 0) {
+            requestSweep();
+        }
+    }
+
+    // 已经有换出在等待或者执行时只增加计数, 执行完发现有新的请求会再执行一次
+    private void requestSweep() {
+        if (sweepRequests.getAndIncrement() == 0) {
+            PageSweeper.sweep(this);
+        }
+    }
+
+    void sweepQuietly() {
+        try {
+            int requests;
+            do {
+                requests = sweepRequests.get();
+                if (!closed) {
+                    sweep();
+                }
+            } while (!sweepRequests.compareAndSet(requests, 0));
+        } catch (Throwable t) {
+            sweepRequests.set(0);
+            if (backgroundExceptionHandler != null) {
+                backgroundExceptionHandler.uncaughtException(null, t);
+            }
         }
     }
 
+    /**
+     * 先换出页缓存已经淘汰的干净叶子页, 由缓存决定哪些页留在内存中; 超出过上限时再换出其他干净的叶子页,
+     * 一直换到上限的3/4以下, 读入少量页后不会马上又触发换出.
+     * 脏页要等保存之后才能换出. 保存中的chunk写入文件之前它的页不能换出, 跳过这次, 保存结束后会再换出.
+     */
+    void sweep() {
+        bTreeMap.acquireExclusiveLock();
+        try {
+            Page root = bTreeMap.getRootPage();
+            if (closed || saving || !root.isNode()) {
+                return;
+            }
+            boolean overLimit = residentMemory.get() > maxResidentMemory;
+            long resident = ((BTreeNode) root).unswizzleLeaves(cache);
+            long lowWater = maxResidentMemory / 4 * 3;
+            if ((overLimit || resident > maxResidentMemory) && resident > lowWater) {
+                resident -= ((BTreeNode) root).releaseLeaves(resident - lowWater);
+            }
+            residentMemory.set(resident);
+        } finally {
+            bTreeMap.releaseExclusiveLock();
+        }
+    }
+
+    /**
+     * 树中叶子页占用的内存, 只在换出时精确统计, 之间只累计读入的叶子页
+     */
+    public long getResidentMemory() {
+        return residentMemory.get();
+    }
+
     public int getCompressionLevel() {
         return compressionLevel;
     }
 
-    public Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
-        }
-        return compressorFast;
+    int getCompressMinSavings() {
+        return compressMinSavings;
     }
 
-    public Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+    /**
+     * 连续8个页都不可压缩后只抽样压缩, 每16个页试一次, 直到又有页能压缩
+     */
+    boolean tryCompressPage() {
+        int n = incompressiblePages;
+        if (n < 8 || (n & 15) == 0) {
+            return true;
         }
-        return compressorHigh;
+        incompressiblePages = n + 1;
+        return false;
+    }
+
+    void setPageCompressed(boolean compressed) {
+        incompressiblePages = compressed ? 0 : incompressiblePages + 1;
     }
 
     public int getPageSplitSize() {
         return pageSplitSize;
     }
 
+    int getBloomFilterBits() {
+        return bloomFilterBits;
+    }
+
     public int getMinFillRate() {
         return minFillRate;
     }
 
+    public int getCompactStepPages() {
+        return compactStepPages;
+    }
+
+    /**
+     * 按配置的速率累计可以重写的字节数, 两次压缩间隔越长, 本次可以重写的越多, 最多一个chunk的大小
+     */
+    synchronized long getCompactBudget() {
+        if (compactRate <= 0) {
+            return Chunk.MAX_SIZE;
+        }
+        long now = System.currentTimeMillis();
+        compactBudget = Math.min(Chunk.MAX_SIZE, compactBudget + compactRate * (now - lastCompactTime) / 1000);
+        lastCompactTime = now;
+        return compactBudget;
+    }
+
+    synchronized void useCompactBudget(long bytes) {
+        if (compactRate > 0) {
+            compactBudget -= bytes;
+        }
+    }
+
     synchronized void remove() {
         closeNow();
         if (bTreeMap.isInMemory()) {
@@ -184,7 +348,7 @@ public final class BTreeStore {
         synchronized (this) {
             chunkManager.close();
             if (cache != null)
-                cache.clear();
+                cache.close();
         }
     }
 
@@ -192,6 +356,35 @@ public final class BTreeStore {
         hasUnsavedChanges = b;
     }
 
+    public void addUnsavedMemory(int memory) {
+        unsavedMemory.addAndGet(memory);
+    }
+
+    /**
+     * 上次保存之后写入的key和value的内存估算值, 用于按脏数据量触发检查点
+     */
+    public long getUnsavedMemory() {
+        return unsavedMemory.get();
+    }
+
+    /**
+     * 上次保存(包括压缩)的耗时, 单位毫秒
+     */
+    public long getLastSaveTime() {
+        return lastSaveTime;
+    }
+
+    /**
+     * 上次保存(包括压缩)写入的chunk字节数
+     */
+    public long getLastSaveBytes() {
+        return lastSaveBytes;
+    }
+
+    public long getTotalSaveBytes() {
+        return totalSaveBytes.get();
+    }
+
     private boolean hasUnsavedChanges() {
         boolean b = hasUnsavedChanges;
         hasUnsavedChanges = false;
@@ -212,36 +405,112 @@ public final class BTreeStore {
         if (!hasUnsavedChanges()) {
             return;
         }
+        long start = System.currentTimeMillis();
+        long bytes = totalSaveBytes.get();
         try {
-            executeSave();
-            new ChunkCompactor(this, chunkManager).executeCompact();
+            RemovedPages removedPages = executeSave();
+            new ChunkCompactor(this, chunkManager).executeCompact(removedPages);
+            // 保存后所有的页都是干净的, 写入时新建的叶子页没有计入residentMemory, 在后台重新统计.
+            // 换出要加map的排它锁, 不能在监视器中执行, 否则和先加锁再保存的关闭操作互相等待
+            if (maxResidentMemory > 0) {
+                requestSweep();
+            }
         } catch (IllegalStateException e) {
             throw panic(e);
         }
+        lastSaveTime = System.currentTimeMillis() - start;
+        lastSaveBytes = totalSaveBytes.get() - bytes;
     }
 
-    public synchronized void executeSave() {
+    /**
+     * 只在序列化脏页时持有map的排它锁, 最后几个段的写入和fsync时前台写操作可以继续进行.
+     * 序列化时交给写线程的段都还没有写完时, 会持有排它锁等待磁盘, 见{@link ChunkWriter},
+     * 所以脏数据多时写操作的停顿接近整个保存的时间.
+     * 所有同时需要监视器和排它锁的地方都先进入监视器再加锁.
+     *
+     * @return 本次保存的chunk中记录的已删除页, 这些页不会再被新chunk引用
+     */
+    public synchronized RemovedPages executeSave() {
         if (bTreeMap.isInMemory()) {
-            return;
+            return new RemovedPages();
         }
+        RedoLog redoLog = bTreeMap.getRedoLog();
         DataBuffer chunkBody = DataBuffer.create();
+        Chunk c = null;
         try {
-            Chunk c = chunkManager.createChunk();
-            c.fileStorage = getFileStorage(c.fileName);
-            c.mapSize = bTreeMap.size();
-            Page p = bTreeMap.getRootPage();
-            p.writeUnsavedRecursive(c, chunkBody);
-            c.rootPagePos = p.getPos();
-            c.write(chunkBody, chunkManager.getRemovedPages());
-            chunkManager.addChunk(c);
-            chunkManager.setLastChunk(c);
+            long redoLsn;
+            RemovedPages removedPages;
+            bTreeMap.acquireExclusiveLock();
+            try {
+                saving = true;
+                redoLsn = redoLog == null ? 0 : redoLog.getLastLsn();
+                unsavedMemory.set(0);
+                c = createChunk();
+                c.mapSize = bTreeMap.size();
+                c.redoLsn = redoLsn;
+                Page p = bTreeMap.getRootPage();
+                p.writeUnsavedRecursive(c, chunkBody);
+                c.rootPagePos = p.getPos();
+                removedPages = chunkManager.getRemovedPagesCopy();
+            } finally {
+                bTreeMap.releaseExclusiveLock();
+            }
+            writeChunk(c, chunkBody, removedPages);
+            if (redoLog != null) {
+                redoLog.setCheckpoint(bTreeMap.getName(), redoLsn);
+            }
+            return removedPages;
         } catch (IllegalStateException e) {
             throw panic(e);
         } finally {
+            saving = false;
+            if (c != null) {
+                c.cancelWrite();
+            }
             chunkBody.close();
         }
     }
 
+    Chunk createChunk() {
+        Chunk c = chunkManager.createChunk();
+        c.fileStorage = getFileStorage(c.fileName);
+        c.setWriter(chunkWriter);
+        return c;
+    }
+
+    // 写入chunk文件后才能成为最后一个chunk, 打开map时从它的根页开始读
+    void writeChunk(Chunk c, DataBuffer chunkBody, RemovedPages removedPages) {
+        c.write(chunkBody, removedPages);
+        chunkManager.addChunk(c);
+        chunkManager.setLastChunk(c);
+        totalSaveBytes.addAndGet(c.getFileLength());
+    }
+
+    RemovedPages getRemovedPages() {
+        return chunkManager.getRemovedPagesCopy();
+    }
+
+    /**
+     * 按key找到仍在树中的叶子页并标记为脏页, 下次保存时重写到新的chunk.
+     * 缓存中的页可能已经被淘汰, 按pos重新读出的页对象并不在树中, 标记它不会重写任何数据.
+     */
+    boolean markDirtyLeafPages(List<Long> positions, List<Object> keys) {
+        boolean marked = false;
+        bTreeMap.acquireExclusiveLock();
+        try {
+            for (int i = 0, size = positions.size(); i < size; i++) {
+                Page p = bTreeMap.gotoLeafPage(keys.get(i));
+                if (p.getPos() == positions.get(i)) {
+                    p.markDirtyRecursive();
+                    marked = true;
+                }
+            }
+        } finally {
+            bTreeMap.releaseExclusiveLock();
+        }
+        return marked;
+    }
+
     public FileStorage getFileStorage(int chunkId) {
         String chunkFileName = mapBaseDir + File.separator + chunkManager.getChunkFileName(chunkId);
         return openFileStorage(chunkFileName);
@@ -0,0 +1,131 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.util.DataUtils;
+
+/**
+ * 叶子页的Bloom过滤器, 保存在父结点中对应子页的位置之后, 随父结点一起读入内存.
+ * <p>
+ * key按序列化后的字节计算hash, 不依赖key对象的hashCode, long类型key的map直接对key做混淆.
+ * 格式: [hash函数个数 varInt, 0表示没有过滤器][long个数 varInt][long...]
+ */
+final class BloomFilter {
+
+    private static final int MAX_HASH_COUNT = 30;
+
+    private final int hashCount;
+    private final long[] bits;
+
+    private BloomFilter(int hashCount, long[] bits) {
+        this.hashCount = hashCount;
+        this.bits = bits;
+    }
+
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long bitCount = (long) bits.length << 6;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long bitCount = (long) bits.length << 6;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    int getMemory() {
+        return 24 + bits.length * 8;
+    }
+
+    static void write(DataBuffer buff, BloomFilter filter) {
+        if (filter == null) {
+            buff.putVarInt(0);
+            return;
+        }
+        buff.putVarInt(filter.hashCount).putVarInt(filter.bits.length);
+        for (long b : filter.bits) {
+            buff.putLong(b);
+        }
+    }
+
+    static BloomFilter read(ByteBuffer buff) {
+        int hashCount = DataUtils.readVarInt(buff);
+        if (hashCount == 0) {
+            return null;
+        }
+        long[] bits = new long[DataUtils.readVarInt(buff)];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buff.getLong();
+        }
+        return new BloomFilter(hashCount, bits);
+    }
+
+    /**
+     * 为叶子页的所有key生成过滤器, 没有开启或者页为空时返回null
+     */
+    static BloomFilter create(BTreeMap<?, ?> map, Page leaf) {
+        int bitsPerKey = map.getBTreeStorage().getBloomFilterBits();
+        int keyCount = leaf.getKeyCount();
+        if (bitsPerKey <= 0 || keyCount == 0) {
+            return null;
+        }
+        int hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int) Math.round(bitsPerKey * Math.log(2))));
+        BloomFilter filter = new BloomFilter(hashCount, new long[((int) ((long) keyCount * bitsPerKey) + 63) >>> 6]);
+        DataBuffer buff = map.isLongKeyMap() ? null : DataBuffer.create();
+        try {
+            for (int i = 0; i < keyCount; i++) {
+                filter.add(hash(map, leaf.getKey(i), buff));
+            }
+        } finally {
+            if (buff != null) {
+                buff.close();
+            }
+        }
+        return filter;
+    }
+
+    static long hash(BTreeMap<?, ?> map, Object key) {
+        if (map.isLongKeyMap()) {
+            return hash(map, key, null);
+        }
+        DataBuffer buff = DataBuffer.create();
+        try {
+            return hash(map, key, buff);
+        } finally {
+            buff.close();
+        }
+    }
+
+    private static long hash(BTreeMap<?, ?> map, Object key, DataBuffer buff) {
+        if (buff == null) {
+            return mix((Long) key);
+        }
+        buff.clear();
+        map.getKeyType().write(buff, key);
+        ByteBuffer b = buff.getBuffer();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, len = buff.position(); i < len; i++) {
+            h = (h ^ b.get(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
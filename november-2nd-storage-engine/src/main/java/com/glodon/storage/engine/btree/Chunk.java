@@ -1,10 +1,8 @@
 package com.glodon.storage.engine.btree;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeSet;
 
 import com.glodon.base.storage.DataBuffer;
 import com.glodon.base.util.DataUtils;
@@ -17,7 +15,7 @@ import com.glodon.base.fs.FileStorage;
  * Created by liujing on 2023/10/16.
  */
 public class Chunk {
-    private static final int BLOCK_SIZE = 4 * 1024;
+    static final int BLOCK_SIZE = 4 * 1024;
     private static final int CHUNK_HEADER_BLOCKS = 2;
     private static final int CHUNK_HEADER_SIZE = CHUNK_HEADER_BLOCKS * BLOCK_SIZE;
 
@@ -31,7 +29,7 @@ public class Chunk {
     }
 
     public static final int MAX_SIZE = Integer.MAX_VALUE - CHUNK_HEADER_SIZE;
-    private static final int FORMAT_VERSION = 1;
+    private static final int FORMAT_VERSION = 2;
 
     public final int id;
     public long rootPagePos;
@@ -45,14 +43,102 @@ public class Chunk {
     public long mapSize;
     public int removedPageOffset;
     public int removedPageCount;
-    public final Map<Long, Integer> pagePositionToLengthMap = new HashMap<>();
+    public int removedPageLength;
+    public long redoLsn;
+    // 版本1的已删除页是按顺序保存的页位置, 版本2改成了位图. 只有最后一个chunk的已删除页会被读取,
+    // 升级后第一次保存就会写入版本2的新chunk, 之后的压缩只原地更新这个新chunk, 旧格式的chunk不会被改写
+    private long format = FORMAT_VERSION;
+
+    // 按位置升序排列的页位置和长度, 前pageCount个有效; 打开chunk时不读取, 第一次用到时才从文件中读取
+    private volatile long[] pagePositions;
+    private int[] pageLengths;
+    // 保存时分段写入body, 为null时整个body在write时一次写入
+    private ChunkWriter writer;
 
     public Chunk(int id) {
         this.id = id;
     }
 
     public int getPageLength(long pagePosition) {
-        return pagePositionToLengthMap.get(pagePosition);
+        readPagePositions();
+        int index = Arrays.binarySearch(pagePositions, 0, pageCount, pagePosition);
+        if (index < 0) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                    "Page {0} not found in chunk {1}", pagePosition, id);
+        }
+        return pageLengths[index];
+    }
+
+    long[] getPagePositions() {
+        readPagePositions();
+        return pagePositions;
+    }
+
+    int[] getPageLengths() {
+        readPagePositions();
+        return pageLengths;
+    }
+
+    /**
+     * 写入页时记录页的位置和长度, 页在chunk中按顺序追加, 位置总是递增的
+     */
+    void addPage(long pagePosition, int pageLength) {
+        long[] positions = pagePositions;
+        int[] lengths = pageLengths;
+        int count = pageCount;
+        if (positions == null) {
+            positions = new long[16];
+            lengths = new int[16];
+        } else if (count == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(16, count * 2));
+            lengths = Arrays.copyOf(lengths, positions.length);
+        }
+        int index = count;
+        while (index > 0 && positions[index - 1] > pagePosition) {
+            index--;
+        }
+        System.arraycopy(positions, index, positions, index + 1, count - index);
+        System.arraycopy(lengths, index, lengths, index + 1, count - index);
+        positions[index] = pagePosition;
+        lengths[index] = pageLength;
+        pageLengths = lengths;
+        pagePositions = positions;
+        pageCount = count + 1;
+    }
+
+    /**
+     * 序列化缓冲区中的位置在chunk body中的偏移, 前面的段已经写入文件并从缓冲区中移走
+     */
+    int getOffset(int bufferPos) {
+        return writer == null ? bufferPos : writer.getFlushedLength() + bufferPos;
+    }
+
+    /**
+     * 写完一个完整的页之后调用, 缓冲区超过一段时把前面的数据写入文件
+     */
+    void flushSegment(DataBuffer body) {
+        if (writer != null) {
+            writer.flushSegment(body);
+        }
+    }
+
+    void setWriter(ChunkWriter writer) {
+        this.writer = writer;
+        writer.start(this);
+    }
+
+    /**
+     * 保存失败时调用, 等写线程不再使用这个chunk的文件
+     */
+    void cancelWrite() {
+        if (writer != null) {
+            writer.cancel();
+            writer = null;
+        }
+    }
+
+    long getFileLength() {
+        return (long) blockCount * BLOCK_SIZE;
     }
 
     int getFillRate() {
@@ -80,39 +166,80 @@ public class Chunk {
     }
 
     private void readPagePositions() {
-        if (!pagePositionToLengthMap.isEmpty())
+        if (pagePositions != null)
             return;
-        ByteBuffer buff = fileStorage.readFully(getFilePos(pagePositionAndLengthOffset),
-                pageCount * 8 + pageCount * 4);
-        for (int i = 0; i < pageCount; i++) {
-            long position = buff.getLong();
-            int length = buff.getInt();
-            pagePositionToLengthMap.put(position, length);
+        synchronized (this) {
+            if (pagePositions != null)
+                return;
+            int count = pageCount;
+            long[] positions = new long[count];
+            int[] lengths = new int[count];
+            if (count > 0) {
+                ByteBuffer buff = fileStorage.readFully(getFilePos(pagePositionAndLengthOffset),
+                        count * 8 + count * 4);
+                boolean sorted = true;
+                for (int i = 0; i < count; i++) {
+                    positions[i] = buff.getLong();
+                    lengths[i] = buff.getInt();
+                    if (i > 0 && positions[i] < positions[i - 1]) {
+                        sorted = false;
+                    }
+                }
+                if (!sorted) {
+                    // 旧版本按HashMap的顺序写入
+                    sort(positions, lengths);
+                }
+            }
+            pageLengths = lengths;
+            pagePositions = positions;
+        }
+    }
+
+    private static void sort(long[] positions, int[] lengths) {
+        Integer[] index = new Integer[positions.length];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = i;
+        }
+        Arrays.sort(index, (a, b) -> Long.compare(positions[a], positions[b]));
+        long[] p = positions.clone();
+        int[] l = lengths.clone();
+        for (int i = 0; i < index.length; i++) {
+            positions[i] = p[index[i]];
+            lengths[i] = l[index[i]];
         }
     }
 
     private void writePagePositions(DataBuffer buff) {
-        pagePositionAndLengthOffset = buff.position();
-        for (Entry<Long, Integer> e : pagePositionToLengthMap.entrySet()) {
-            buff.putLong(e.getKey()).putInt(e.getValue());
+        pagePositionAndLengthOffset = getOffset(buff.position());
+        long[] positions = pagePositions;
+        int[] lengths = pageLengths;
+        for (int i = 0; i < pageCount; i++) {
+            buff.putLong(positions[i]).putInt(lengths[i]);
         }
     }
 
-    public void readRemovedPages(TreeSet<Long> removedPages) {
-        if (removedPageCount > 0) {
+    public RemovedPages readRemovedPages() {
+        if (removedPageCount <= 0) {
+            return new RemovedPages();
+        }
+        if (format < 2) {
+            RemovedPages removedPages = new RemovedPages();
             ByteBuffer buff = fileStorage.readFully(getFilePos(removedPageOffset), removedPageCount * 8);
             for (int i = 0; i < removedPageCount; i++) {
                 removedPages.add(buff.getLong());
             }
+            return removedPages;
         }
+        ByteBuffer buff = fileStorage.readFully(getFilePos(removedPageOffset), removedPageLength);
+        return RemovedPages.read(buff);
     }
 
-    private void writeRemovedPages(DataBuffer buff, TreeSet<Long> removedPages) {
-        removedPageOffset = buff.position();
+    private void writeRemovedPages(DataBuffer buff, RemovedPages removedPages) {
+        int start = buff.position();
+        removedPageOffset = getOffset(start);
         removedPageCount = removedPages.size();
-        for (long pos : removedPages) {
-            buff.putLong(pos);
-        }
+        removedPages.write(buff);
+        removedPageLength = buff.position() - start;
     }
 
     public void read(BTreeStore btreeStore) {
@@ -120,7 +247,6 @@ public class Chunk {
             fileStorage = btreeStore.getFileStorage(id);
         }
         readHeader();
-        readPagePositions();
     }
 
     private void readHeader() {
@@ -186,7 +312,7 @@ public class Chunk {
 
         mapSize = DataUtils.readHexLong(map, "mapSize", 0);
 
-        long format = DataUtils.readHexLong(map, "format", FORMAT_VERSION);
+        format = DataUtils.readHexLong(map, "format", FORMAT_VERSION);
         if (format > FORMAT_VERSION) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_UNSUPPORTED_FORMAT,
                     "The chunk format {0} is larger than the supported format {1}", format,
@@ -195,6 +321,8 @@ public class Chunk {
 
         removedPageOffset = DataUtils.readHexInt(map, "removedPageOffset", 0);
         removedPageCount = DataUtils.readHexInt(map, "removedPageCount", 0);
+        removedPageLength = DataUtils.readHexInt(map, "removedPageLength", 0);
+        redoLsn = DataUtils.readHexLong(map, "redoLsn", 0);
     }
 
     private StringBuilder asStringBuilder() {
@@ -212,41 +340,57 @@ public class Chunk {
 
         DataUtils.appendMap(buff, "blockSize", BLOCK_SIZE);
         DataUtils.appendMap(buff, "mapSize", mapSize);
-        DataUtils.appendMap(buff, "format", FORMAT_VERSION);
+        DataUtils.appendMap(buff, "format", format);
 
         DataUtils.appendMap(buff, "removedPageOffset", removedPageOffset);
         DataUtils.appendMap(buff, "removedPageCount", removedPageCount);
+        DataUtils.appendMap(buff, "removedPageLength", removedPageLength);
+        DataUtils.appendMap(buff, "redoLsn", redoLsn);
         return buff;
     }
 
-    public void write(DataBuffer body, TreeSet<Long> removedPages) {
+    /**
+     * 写入body中剩下的数据和chunk头, 前面的段在序列化页时已经交给写线程, 这里先等它们写完
+     */
+    public void write(DataBuffer body, RemovedPages removedPages) {
         writePagePositions(body);
+        flushSegment(body);
         writeRemovedPages(body, removedPages);
 
-        int chunkBodyLength = body.position();
-        chunkBodyLength = MathUtils.roundUpInt(chunkBodyLength, BLOCK_SIZE);
-        body.limit(chunkBodyLength);
+        int flushedLength = getOffset(0);
+        int chunkBodyLength = MathUtils.roundUpInt(flushedLength + body.position(), BLOCK_SIZE);
+        body.limit(chunkBodyLength - flushedLength);
         body.position(0);
         blockCount = chunkBodyLength / BLOCK_SIZE + CHUNK_HEADER_BLOCKS;
 
+        if (writer != null) {
+            writer.finish();
+            writer = null;
+        }
         writeHeader();
-        fileStorage.writeFully(CHUNK_HEADER_SIZE, body.getBuffer());
+        fileStorage.writeFully(getFilePos(flushedLength), body.getBuffer());
         fileStorage.sync();
     }
 
-    public void updateRemovedPages(TreeSet<Long> removedPages) {
-        removedPageCount = removedPages.size();
-        writeHeader();
-        if (removedPageCount > 0) {
-            DataBuffer buff = DataBuffer.create();
-            try {
-                for (long pos : removedPages) {
-                    buff.putLong(pos);
-                }
-                fileStorage.writeFully(getFilePos(removedPageOffset), buff.getAndFlipBuffer());
-            } finally {
-                buff.close();
+    /**
+     * 在原来的位置重写已删除页, 只会从写入时的集合中删除整个chunk, 所以新的位图不会比原来的长.
+     * 压缩总是紧跟在保存之后, 这时最后一个chunk一定是刚写入的版本2, 版本1的chunk到这里说明调用顺序有错
+     */
+    public void updateRemovedPages(RemovedPages removedPages) {
+        DataBuffer buff = DataBuffer.create();
+        try {
+            removedPages.write(buff);
+            int length = buff.position();
+            if (format < FORMAT_VERSION || length > removedPageLength) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL,
+                        "Removed pages of chunk {0} can not be updated in place", id);
             }
+            removedPageCount = removedPages.size();
+            removedPageLength = length;
+            writeHeader();
+            fileStorage.writeFully(getFilePos(removedPageOffset), buff.getAndFlipBuffer());
+        } finally {
+            buff.close();
         }
         fileStorage.sync();
     }
@@ -2,10 +2,7 @@ package com.glodon.storage.engine.btree;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeSet;
 
 public class ChunkCompactor {
 
@@ -17,8 +14,10 @@ public class ChunkCompactor {
         this.chunkManager = chunkManager;
     }
 
-    public void executeCompact() {
-        TreeSet<Long> removedPages = chunkManager.getRemovedPagesCopy();
+    /**
+     * @param removedPages 最近一次保存时的已删除页, 保存之后才删除的页可能仍被最新的chunk引用, 留到下次压缩处理
+     */
+    public void executeCompact(RemovedPages removedPages) {
         if (removedPages.isEmpty())
             return;
         List<Chunk> chunks = readChunks(removedPages);
@@ -30,66 +29,86 @@ public class ChunkCompactor {
         rewrite(chunks, removedPages);
     }
 
-    private List<Chunk> readChunks(TreeSet<Long> removedPages) {
-        HashSet<Integer> chunkIds = new HashSet<>();
-        for (Long pagePos : removedPages) {
-            if (!PageUtils.isNodePage(pagePos))
-                chunkIds.add(PageUtils.getPageChunkId(pagePos));
-        }
-        return chunkManager.readChunks(chunkIds);
+    private List<Chunk> readChunks(RemovedPages removedPages) {
+        return chunkManager.readChunks(removedPages.getLeafPageChunkIds());
     }
 
-    private List<Chunk> findUnusedChunks(List<Chunk> chunks, TreeSet<Long> removedPages) {
+    private List<Chunk> findUnusedChunks(List<Chunk> chunks, RemovedPages removedPages) {
         ArrayList<Chunk> unusedChunks = new ArrayList<>();
         for (Chunk c : chunks) {
-            c.sumOfLivePageLength = 0;
-            boolean unused = true;
-            for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                if (!removedPages.contains(e.getKey())) {
-                    c.sumOfLivePageLength += e.getValue();
-                    unused = false;
+            // 全部被删除时不用读取chunk的页位置
+            if (removedPages.getPageCount(c.id) >= c.pageCount) {
+                c.sumOfLivePageLength = 0;
+                unusedChunks.add(c);
+                continue;
+            }
+            long[] positions = c.getPagePositions();
+            int[] lengths = c.getPageLengths();
+            long live = 0;
+            for (int i = 0, count = c.pageCount; i < count; i++) {
+                if (!removedPages.contains(positions[i])) {
+                    live += lengths[i];
                 }
             }
-            if (unused)
-                unusedChunks.add(c);
+            c.sumOfLivePageLength = live;
         }
         return unusedChunks;
     }
 
-    private void removeUnusedChunks(List<Chunk> unusedChunks, TreeSet<Long> removedPages) {
+    private void removeUnusedChunks(List<Chunk> unusedChunks, RemovedPages removedPages) {
         if (removedPages.isEmpty())
             return;
-        int size = removedPages.size();
+        boolean removed = false;
         for (Chunk c : unusedChunks) {
             chunkManager.removeUnusedChunk(c);
-            removedPages.removeAll(c.pagePositionToLengthMap.keySet());
+            removed |= removedPages.removeChunk(c.id);
         }
-        if (size > removedPages.size()) {
+        if (removed) {
             chunkManager.updateRemovedPages(removedPages);
         }
     }
 
-    private void rewrite(List<Chunk> chunks, TreeSet<Long> removedPages) {
+    /**
+     * 每次只把一部分填充率低的chunk中的存活页标记为脏页, 由下一次保存写到新chunk,
+     * 旧chunk中的页全部被删除后再由后续的压缩删除, 这样单次保存不会因为压缩而写入过多数据.
+     */
+    private void rewrite(List<Chunk> chunks, RemovedPages removedPages) {
         if (btreeStore.getMinFillRate() <= 0 || removedPages.isEmpty()) {
             return;
         }
+        long budget = btreeStore.getCompactBudget();
+        int maxPages = btreeStore.getCompactStepPages();
+        if (budget <= 0 || maxPages <= 0) {
+            return;
+        }
 
         List<Chunk> old = getRewritableChunks(chunks);
-        boolean saveIfNeeded = false;
+        List<Long> positions = new ArrayList<>();
+        List<Object> keys = new ArrayList<>();
+        long bytes = 0;
+        loop:
         for (Chunk c : old) {
-            for (Entry<Long, Integer> e : c.pagePositionToLengthMap.entrySet()) {
-                long pos = e.getKey();
+            long[] pagePositions = c.getPagePositions();
+            int[] pageLengths = c.getPageLengths();
+            for (int i = 0, count = c.pageCount; i < count; i++) {
+                long pos = pagePositions[i];
+                int length = pageLengths[i];
                 if (PageUtils.isLeafPage(pos) && !removedPages.contains(pos)) {
+                    if (positions.size() >= maxPages || bytes + length > budget) {
+                        break loop;
+                    }
                     Page p = btreeStore.readPage(pos);
-                    p.markDirtyRecursive(); // 直接标记为脏页即可，不用更新元素
-                    saveIfNeeded = true;
+                    if (p.getKeyCount() > 0) {
+                        positions.add(pos);
+                        keys.add(p.getKey(0));
+                        bytes += length;
+                    }
                 }
             }
         }
-        if (saveIfNeeded) {
-            btreeStore.executeSave();
-            removedPages = chunkManager.getRemovedPagesCopy();
-            removeUnusedChunks(old, removedPages);
+        // 直接标记为脏页即可，不用更新元素
+        if (btreeStore.markDirtyLeafPages(positions, keys)) {
+            btreeStore.useCompactBudget(bytes);
         }
     }
 
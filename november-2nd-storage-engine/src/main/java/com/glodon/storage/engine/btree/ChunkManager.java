@@ -5,7 +5,6 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.glodon.base.storage.Storage;
@@ -24,7 +23,7 @@ public class ChunkManager {
 
     private final BTreeStore btreeStore;
     private final BitField chunkIds = new BitField();
-    private final TreeSet<Long> removedPages = new TreeSet<>();
+    private RemovedPages removedPages = new RemovedPages();
     private final ConcurrentHashMap<Integer, String> idToChunkFileNameMap = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Integer, Chunk> chunks = new ConcurrentHashMap<>();
 
@@ -59,7 +58,7 @@ public class ChunkManager {
         try {
             if (lastChunkId > 0) {
                 lastChunk = readChunk(lastChunkId);
-                lastChunk.readRemovedPages(removedPages);
+                removedPages = lastChunk.readRemovedPages();
             } else {
                 lastChunk = null;
             }
@@ -94,21 +93,16 @@ public class ChunkManager {
         return ++maxSeq;
     }
 
-    synchronized TreeSet<Long> getRemovedPagesCopy() {
-        return new TreeSet<>(removedPages);
-    }
-
-    public synchronized TreeSet<Long> getRemovedPages() {
-        return removedPages;
+    synchronized RemovedPages getRemovedPagesCopy() {
+        return removedPages.copy();
     }
 
     public synchronized void addRemovedPage(long pagePos) {
         removedPages.add(pagePos);
     }
 
-    synchronized void updateRemovedPages(TreeSet<Long> removedPages) {
-        this.removedPages.clear();
-        this.removedPages.addAll(removedPages);
+    // 只能写入保存时的已删除页, 之后才删除的页可能仍被最后一个chunk引用
+    synchronized void updateRemovedPages(RemovedPages removedPages) {
         getLastChunk().updateRemovedPages(removedPages);
     }
 
@@ -159,12 +153,13 @@ public class ChunkManager {
         idToChunkFileNameMap.put(c.id, c.fileName);
     }
 
-    void removeUnusedChunk(Chunk c) {
+    synchronized void removeUnusedChunk(Chunk c) {
         c.fileStorage.close();
         c.fileStorage.delete();
         chunkIds.clear(c.id);
         chunks.remove(c.id);
         idToChunkFileNameMap.remove(c.id);
+        removedPages.removeChunk(c.id);
     }
 
     List<Chunk> readChunks(HashSet<Integer> chunkIds) {
@@ -0,0 +1,212 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.glodon.base.fs.FileStorage;
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.util.DataUtils;
+import com.glodon.base.util.MathUtils;
+
+/**
+ * 保存时把chunk body按段写入文件, 序列化页的缓冲区只保留还没有交出去的部分, 不再随chunk变大.
+ * <p>
+ * 缓冲区中的数据超过SEGMENT_SIZE时, 按块对齐的前面部分复制到段缓冲区, 放入队列后由共享的写线程按顺序写入.
+ * 最多MAX_SEGMENTS个段在等待或者正在写入, 保存占用的堆外内存不超过MAX_SEGMENTS * SEGMENT_SIZE.
+ * 磁盘比序列化慢时flushSegment等待写线程空出一个段, 这时序列化的线程还持有map的排它锁, 前台写操作也跟着等待磁盘.
+ * 页的位置在写入时就确定了, 所以结点页要在所有子页之后写入, 交出去的数据不会再被修改.
+ * <p>
+ * 每个BTreeStore一个, 同一时间只写一个chunk, 写完的段缓冲区留给下一次保存使用.
+ */
+final class ChunkWriter {
+
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    // 同时在等待和正在写入的段
+    static final int MAX_SEGMENTS = 4;
+    // 保存结束后最多保留的空闲段缓冲区, 保存过程中所有的段都重复使用
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    private static final AtomicInteger threadId = new AtomicInteger();
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "ChunkWriter-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final class Segment {
+        final FileStorage fileStorage;
+        final long filePos;
+        final ByteBuffer data;
+
+        Segment(FileStorage fileStorage, long filePos, ByteBuffer data) {
+            this.fileStorage = fileStorage;
+            this.filePos = filePos;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<ByteBuffer> freeSegments = new ArrayDeque<>();
+    private final ArrayDeque<Segment> queue = new ArrayDeque<>();
+    // 队列不为空时有一个写任务在执行
+    private boolean writing;
+    // 已经交给写线程还没有写完的段
+    private int pendingSegments;
+    private boolean cancelled;
+    private Throwable error;
+
+    private Chunk chunk;
+    // 已经交给写线程的body长度, 缓冲区的位置0对应body中的这个偏移, 只由序列化的线程访问
+    private int flushedLength;
+
+    /**
+     * 开始写一个新的chunk, 上一个chunk必须已经调用了finish或者cancel
+     */
+    void start(Chunk chunk) {
+        this.chunk = chunk;
+        flushedLength = 0;
+        synchronized (this) {
+            cancelled = false;
+            error = null;
+        }
+    }
+
+    int getFlushedLength() {
+        return flushedLength;
+    }
+
+    /**
+     * 只能在完整的页之间调用, 缓冲区中不足一块的数据移到开头
+     */
+    void flushSegment(DataBuffer body) {
+        int end = body.position();
+        if (end < SEGMENT_SIZE) {
+            return;
+        }
+        int length = end / Chunk.BLOCK_SIZE * Chunk.BLOCK_SIZE;
+        ByteBuffer segment = awaitFreeSegment(length);
+        ByteBuffer buff = body.getBuffer();
+        ByteBuffer src = buff.duplicate();
+        src.position(0).limit(length);
+        segment.clear();
+        segment.put(src).flip();
+        src.limit(end).position(length);
+        buff.position(0);
+        buff.put(src);
+
+        Segment s = new Segment(chunk.fileStorage, Chunk.getFilePos(flushedLength), segment);
+        flushedLength += length;
+        synchronized (this) {
+            queue.add(s);
+            pendingSegments++;
+            if (writing) {
+                return;
+            }
+            writing = true;
+        }
+        executor.execute(this::writeSegments);
+    }
+
+    // 段都在使用中时等待写线程写完一个
+    private synchronized ByteBuffer awaitFreeSegment(int length) {
+        boolean interrupted = false;
+        while (pendingSegments >= MAX_SEGMENTS) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // 写线程写完或者跳过段之后一定会通知, 继续等待
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        ByteBuffer segment = freeSegments.poll();
+        if (segment == null || segment.capacity() < length) {
+            segment = ByteBuffer.allocateDirect(MathUtils.roundUpInt(length, SEGMENT_SIZE));
+        }
+        return segment;
+    }
+
+    // 按顺序写入队列中的段, 写失败或者取消后只回收缓冲区
+    private void writeSegments() {
+        while (true) {
+            Segment s;
+            boolean skip;
+            synchronized (this) {
+                s = queue.poll();
+                if (s == null) {
+                    writing = false;
+                    notifyAll();
+                    return;
+                }
+                skip = cancelled || error != null;
+            }
+            Throwable t = null;
+            if (!skip) {
+                try {
+                    s.fileStorage.writeFully(s.filePos, s.data);
+                } catch (Throwable e) {
+                    t = e;
+                }
+            }
+            synchronized (this) {
+                if (t != null && error == null) {
+                    error = t;
+                }
+                freeSegments.add(s.data);
+                pendingSegments--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 等待所有的段写入文件
+     */
+    void finish() {
+        Throwable t = awaitSegments();
+        if (t != null) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                    "Failed to write chunk {0}", chunk.id, t);
+        }
+    }
+
+    /**
+     * 序列化失败时调用, 丢弃还没有写入的段并等待正在写的段结束, 不再使用chunk的文件
+     */
+    void cancel() {
+        synchronized (this) {
+            cancelled = true;
+        }
+        awaitSegments();
+    }
+
+    private synchronized Throwable awaitSegments() {
+        boolean interrupted = false;
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // 写线程还在使用chunk的文件, 必须等它结束
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        while (freeSegments.size() > MAX_FREE_SEGMENTS) {
+            freeSegments.poll();
+        }
+        return error;
+    }
+}
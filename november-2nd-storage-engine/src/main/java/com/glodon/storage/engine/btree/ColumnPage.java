@@ -1,16 +1,39 @@
 package com.glodon.storage.engine.btree;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import com.glodon.base.storage.DataBuffer;
 import com.glodon.base.storage.type.StorageDataType;
+import com.glodon.base.util.DataUtils;
 
+/**
+ * 列存储模式下一个叶子页中某一列的数据.
+ * <p>
+ * 不同值不超过行数一半并且更省空间时按字典编码: 每个不同值序列化后只保存一次, 每行只保存字典中的编号,
+ * 字典按值的序列化字节去重, 和值的类型无关. int, long和timestamp列还可以按数值编码, 见{@link NumericColumn}.
+ * 写入时选择最小的编码.
+ * 格式: [编码方式 byte], 字典编码: [字典大小 varInt][每个值: 长度 varInt, 字节...][编号: 字典不超过256时1字节, 否则2字节]
+ */
 class ColumnPage extends Page {
 
+    static final int ENCODING_PLAIN = 0;
+    static final int ENCODING_DICTIONARY = 1;
+    static final int ENCODING_NUMERIC = 2;
+
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
     Object[] values;
     private int columnIndex;
     private ByteBuffer buff;
 
+    // 字典编码时读取页之后解析出来, readColumn之后释放
+    private int[] dictionaryOffsets;
+    private int[] dictionaryLengths;
+    private int[] codes;
+    private NumericColumn numericColumn;
+
     ColumnPage(BTreeMap<?, ?> map) {
         super(map);
     }
@@ -42,16 +65,116 @@ class ColumnPage extends Page {
 
         readCheckValue(buff, chunkId, offset, pageLength, disableCheck);
         buff.get();
+        int typePos = buff.position();
         int compressType = buff.get();
-        this.buff = expandPage(buff, compressType, start, pageLength);
+        this.buff = expandPage(buff, compressType, typePos, start, pageLength);
+        if ((compressType & PageUtils.PAGE_ENCODED_COLUMN) != 0) {
+            int encoding = this.buff.get();
+            if (encoding == ENCODING_DICTIONARY) {
+                readDictionary();
+            } else if (encoding == ENCODING_NUMERIC) {
+                numericColumn = NumericColumn.read(this.buff);
+            } else if (encoding != ENCODING_PLAIN) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Unknown column encoding {0} in chunk {1}", encoding, chunkId);
+            }
+        }
+    }
+
+    private void readDictionary() {
+        ByteBuffer buff = this.buff;
+        int size = DataUtils.readVarInt(buff);
+        dictionaryOffsets = new int[size];
+        dictionaryLengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            int len = DataUtils.readVarInt(buff);
+            dictionaryOffsets[i] = buff.position();
+            dictionaryLengths[i] = len;
+            buff.position(buff.position() + len);
+        }
+        int rowCount = DataUtils.readVarInt(buff);
+        codes = new int[rowCount];
+        if (size <= 256) {
+            for (int row = 0; row < rowCount; row++) {
+                codes[row] = buff.get() & 255;
+            }
+        } else {
+            for (int row = 0; row < rowCount; row++) {
+                codes[row] = buff.getShort() & 0xffff;
+            }
+        }
+    }
+
+    boolean isDictionaryEncoded() {
+        return codes != null;
+    }
+
+    /**
+     * 每行的值在字典中的编号, 可以直接用编号过滤而不用读出值, 只在readColumn之前可用
+     */
+    int[] getCodes() {
+        return codes;
+    }
+
+    int getDictionarySize() {
+        return dictionaryOffsets.length;
+    }
+
+    /**
+     * 字典中某个值序列化后的字节, 和writeColumn写出的一样
+     */
+    ByteBuffer getDictionaryValue(int code) {
+        ByteBuffer b = buff.duplicate();
+        b.limit(dictionaryOffsets[code] + dictionaryLengths[code]).position(dictionaryOffsets[code]);
+        return b;
+    }
+
+    /**
+     * 按序列化后的字节查找值在字典中的编号, 不存在时返回-1
+     */
+    int getDictionaryCode(ByteBuffer value) {
+        for (int code = 0, size = dictionaryOffsets.length; code < size; code++) {
+            if (getDictionaryValue(code).equals(value)) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按数值编码时解码出来的数值, 可以直接用来过滤, 只在readColumn之前可用
+     */
+    NumericColumn getNumericColumn() {
+        return numericColumn;
     }
 
     void readColumn(Object[] values, int columnIndex) {
         this.values = values;
         this.columnIndex = columnIndex;
         StorageDataType valueType = bTreeMap.getValueType();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.readColumn(buff, values[row], columnIndex);
+        if (numericColumn != null) {
+            DataBuffer b = DataBuffer.create();
+            try {
+                for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                    numericColumn.readColumn(valueType, row, values[row], columnIndex, b);
+                }
+            } finally {
+                b.close();
+            }
+            numericColumn = null;
+        } else if (codes != null) {
+            ByteBuffer b = buff.duplicate();
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                b.position(dictionaryOffsets[codes[row]]);
+                valueType.readColumn(b, values[row], columnIndex);
+            }
+            dictionaryOffsets = null;
+            dictionaryLengths = null;
+            codes = null;
+        } else {
+            for (int row = 0, rowCount = values.length; row < rowCount; row++) {
+                valueType.readColumn(buff, values[row], columnIndex);
+            }
         }
         buff = null;
     }
@@ -61,24 +184,116 @@ class ColumnPage extends Page {
         int type = PageUtils.PAGE_TYPE_COLUMN;
         buff.putInt(0);
 
-        StorageDataType valueType = bTreeMap.getValueType();
         int checkPos = buff.position();
         buff.putShort((short) 0);
         buff.put((byte) type);
         int compressTypePos = buff.position();
-        int compressType = 0;
+        int compressType = PageUtils.PAGE_ENCODED_COLUMN;
         buff.put((byte) compressType);
         int compressStart = buff.position();
-        for (int row = 0, rowCount = values.length; row < rowCount; row++) {
-            valueType.writeColumn(buff, values[row], columnIndex);
-        }
+        buff.put((byte) ENCODING_PLAIN);
+        int dataStart = buff.position();
+        int rowCount = values.length;
+        int[] ends = writeValues(buff, rowCount);
+        encodeIfSmaller(buff, dataStart, ends, compressStart);
         compressPage(buff, compressStart, compressType, compressTypePos);
         int pageLength = buff.position() - start;
         buff.putInt(start, pageLength);
         int chunkId = chunk.id;
 
-        writeCheckValue(buff, chunkId, start, pageLength, checkPos);
+        writeCheckValue(buff, chunkId, chunk.getOffset(start), pageLength, checkPos);
         updateChunkAndCachePage(chunk, start, pageLength, type);
         return pos;
     }
+
+    private int[] writeValues(DataBuffer buff, int rowCount) {
+        StorageDataType valueType = bTreeMap.getValueType();
+        int[] ends = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            valueType.writeColumn(buff, values[row], columnIndex);
+            ends[row] = buff.position();
+        }
+        return ends;
+    }
+
+    /**
+     * 值按顺序写在dataStart之后, 字典编码或者数值编码更小时改写成更小的那个
+     */
+    private void encodeIfSmaller(DataBuffer buff, int dataStart, int[] ends, int encodingPos) {
+        int rowCount = ends.length;
+        if (rowCount < 4) {
+            return;
+        }
+        ByteBuffer data = buff.getBuffer();
+        DataBuffer best = null;
+        DataBuffer encoded = DataBuffer.create();
+        try {
+            NumericColumn numeric = NumericColumn.parse(data, dataStart, ends);
+            if (numeric != null) {
+                encoded.put((byte) ENCODING_NUMERIC);
+                numeric.write(encoded);
+                best = encoded;
+                encoded = DataBuffer.create();
+            }
+            if (encodeDictionary(encoded, data, dataStart, ends)
+                    && (best == null || encoded.position() < best.position())) {
+                DataBuffer t = best;
+                best = encoded;
+                encoded = t;
+            }
+            if (best != null && best.position() < ends[rowCount - 1] - encodingPos) {
+                buff.position(encodingPos).put(best.getAndFlipBuffer());
+            }
+        } finally {
+            if (best != null)
+                best.close();
+            if (encoded != null)
+                encoded.close();
+        }
+    }
+
+    /**
+     * 按序列化的字节去重, 不同值太多时返回false
+     */
+    private static boolean encodeDictionary(DataBuffer out, ByteBuffer data, int dataStart, int[] ends) {
+        int rowCount = ends.length;
+        int maxSize = Math.min(MAX_DICTIONARY_SIZE, rowCount / 2);
+        HashMap<ByteBuffer, Integer> dictionary = new HashMap<>();
+        int[] rowCodes = new int[rowCount];
+        ByteBuffer[] entries = new ByteBuffer[Math.min(maxSize, 64)];
+        for (int row = 0, from = dataStart; row < rowCount; row++) {
+            int to = ends[row];
+            ByteBuffer value = data.duplicate();
+            value.limit(to).position(from);
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                if (code >= maxSize) {
+                    return false;
+                }
+                dictionary.put(value, code);
+                if (code == entries.length) {
+                    entries = Arrays.copyOf(entries, Math.min(maxSize, code * 2));
+                }
+                entries[code] = value;
+            }
+            rowCodes[row] = code;
+            from = to;
+        }
+        int size = dictionary.size();
+        out.put((byte) ENCODING_DICTIONARY).putVarInt(size);
+        for (int code = 0; code < size; code++) {
+            ByteBuffer e = entries[code];
+            out.putVarInt(e.remaining()).put(e.duplicate());
+        }
+        out.putVarInt(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            if (size <= 256) {
+                out.put((byte) rowCodes[row]);
+            } else {
+                out.putShort((short) rowCodes[row]);
+            }
+        }
+        return true;
+    }
 }
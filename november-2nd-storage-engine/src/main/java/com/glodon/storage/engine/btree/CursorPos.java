@@ -4,6 +4,8 @@ public class CursorPos {
 
     public final Page page;
     public int index;
+    // 已经发出预读请求的子页结束位置, 逆序遍历时是最左边的子页位置
+    public int prefetchEnd;
 
     public final CursorPos parent;
 
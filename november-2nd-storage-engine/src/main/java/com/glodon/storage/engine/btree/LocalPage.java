@@ -1,5 +1,9 @@
 package com.glodon.storage.engine.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.glodon.base.storage.DataBuffer;
 import com.glodon.base.util.DataUtils;
 import com.glodon.base.storage.type.StorageDataType;
 
@@ -10,11 +14,14 @@ public abstract class LocalPage extends Page {
 
     public static final boolean ASSERT = false;
 
+    private static final int LONG_KEY_MEMORY = 8;
+
     protected int cachedCompare;
 
     protected int memory;
 
-    protected Object[] keys;
+    // long类型key的map使用long[], 避免装箱和比较时拆箱, 其他map使用Object[]
+    protected Object keys;
 
     protected volatile boolean removedInMemory;
 
@@ -24,22 +31,77 @@ public abstract class LocalPage extends Page {
 
     @Override
     public Object getKey(int index) {
-        return keys[index];
+        return getKey(keys, index);
     }
 
     @Override
     public int getKeyCount() {
-        return keys.length;
+        return getLength(keys);
+    }
+
+    static int getLength(Object keys) {
+        return keys instanceof long[] ? ((long[]) keys).length : ((Object[]) keys).length;
+    }
+
+    static Object getKey(Object keys, int index) {
+        return keys instanceof long[] ? (Object) ((long[]) keys)[index] : ((Object[]) keys)[index];
+    }
+
+    static void setKey(Object keys, int index, Object key) {
+        if (keys instanceof long[]) {
+            ((long[]) keys)[index] = (Long) key;
+        } else {
+            ((Object[]) keys)[index] = key;
+        }
+    }
+
+    static void copyKey(Object src, int srcIndex, Object dst, int dstIndex) {
+        if (src instanceof long[]) {
+            ((long[]) dst)[dstIndex] = ((long[]) src)[srcIndex];
+        } else {
+            ((Object[]) dst)[dstIndex] = ((Object[]) src)[srcIndex];
+        }
+    }
+
+    Object newKeys(int length) {
+        return bTreeMap.isLongKeyMap() ? new long[length] : new Object[length];
+    }
+
+    // 调用方传入的Object[]在long类型key的map中转换成long[]
+    Object toKeys(Object keys) {
+        if (!bTreeMap.isLongKeyMap() || keys instanceof long[]) {
+            return keys;
+        }
+        Object[] k = (Object[]) keys;
+        long[] a = new long[k.length];
+        for (int i = 0; i < k.length; i++) {
+            a[i] = (Long) k[i];
+        }
+        return a;
+    }
+
+    int getKeyMemory(Object key) {
+        return bTreeMap.isLongKeyMap() ? LONG_KEY_MEMORY : bTreeMap.getKeyType().getMemory(key);
+    }
+
+    int compareKey(int index, Object key) {
+        if (keys instanceof long[]) {
+            return Long.compare(((long[]) keys)[index], (Long) key);
+        }
+        return bTreeMap.getKeyType().compare(((Object[]) keys)[index], key);
     }
 
     @Override
     public int binarySearch(Object key) {
-        int low = 0, high = keys.length - 1;
+        if (keys instanceof long[]) {
+            return binarySearch((long[]) keys, (Long) key);
+        }
+        Object[] k = (Object[]) keys;
+        int low = 0, high = k.length - 1;
         int x = cachedCompare - 1;
         if (x < 0 || x > high) {
             x = high >>> 1;
         }
-        Object[] k = keys;
         StorageDataType keyType = bTreeMap.getKeyType();
         while (low <= high) {
             int compare = keyType.compare(key, k[x]);
@@ -57,31 +119,53 @@ public abstract class LocalPage extends Page {
         return -(low + 1);
     }
 
+    private int binarySearch(long[] k, long key) {
+        int low = 0, high = k.length - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = high >>> 1;
+        }
+        while (low <= high) {
+            long v = k[x];
+            if (key > v) {
+                low = x + 1;
+            } else if (key < v) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
     @Override
     boolean needSplit() {
-        return memory > bTreeMap.getBTreeStorage().getPageSplitSize() && keys.length > 1;
+        return memory > bTreeMap.getBTreeStorage().getPageSplitSize() && getLength(keys) > 1;
     }
 
     @Override
     public void setKey(int index, Object key) {
-        keys = keys.clone();
-        Object old = keys[index];
-        StorageDataType keyType = bTreeMap.getKeyType();
-        int mem = keyType.getMemory(key);
+        Object newKeys = keys instanceof long[] ? ((long[]) keys).clone() : ((Object[]) keys).clone();
+        Object old = getKey(newKeys, index);
+        int mem = getKeyMemory(key);
         if (old != null) {
-            mem -= keyType.getMemory(old);
+            mem -= getKeyMemory(old);
         }
         addMemory(mem);
-        keys[index] = key;
+        setKey(newKeys, index, key);
+        keys = newKeys;
     }
 
     @Override
     public void remove(int index) {
-        int keyLength = keys.length;
+        int keyLength = getLength(keys);
         int keyIndex = index >= keyLength ? index - 1 : index;
-        Object old = keys[keyIndex];
-        addMemory(-bTreeMap.getKeyType().getMemory(old));
-        Object[] newKeys = new Object[keyLength - 1];
+        Object old = getKey(keys, keyIndex);
+        addMemory(-getKeyMemory(old));
+        Object newKeys = newKeys(keyLength - 1);
         DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
         keys = newKeys;
     }
@@ -90,13 +174,130 @@ public abstract class LocalPage extends Page {
 
     protected int recalculateKeysMemory() {
         int mem = PageUtils.PAGE_MEMORY;
+        if (keys instanceof long[]) {
+            return mem + LONG_KEY_MEMORY * ((long[]) keys).length;
+        }
         StorageDataType keyType = bTreeMap.getKeyType();
-        for (int i = 0, len = keys.length; i < len; i++) {
-            mem += keyType.getMemory(keys[i]);
+        for (Object key : (Object[]) keys) {
+            mem += keyType.getMemory(key);
         }
         return mem;
     }
 
+    /**
+     * 写入所有key, 并把key的编码方式记到typePos处的页类型中
+     *
+     * @return 新的页类型
+     */
+    int writeKeys(DataBuffer buff, int keyLength, int typePos) {
+        int keysType;
+        if (keys instanceof long[]) {
+            // long类型的key是升序的, 写成第一个key的zigzag编码加上相邻key差值的varlong
+            long[] k = (long[]) keys;
+            for (int i = 0; i < keyLength; i++) {
+                buff.putVarLong(i == 0 ? (k[0] << 1) ^ (k[0] >> 63) : k[i] - k[i - 1]);
+            }
+            keysType = PageUtils.PAGE_LONG_KEYS;
+        } else {
+            keysType = writePrefixCompressedKeys(buff, keyLength);
+        }
+        int pageType = buff.getBuffer().get(typePos) | keysType;
+        int oldPos = buff.position();
+        buff.position(typePos).put((byte) pageType);
+        buff.position(oldPos);
+        return pageType;
+    }
+
+    // 先按原来的格式写入, 再在后面写出[共享前缀长度][后缀长度][后缀], 更短时移到开头, 第一个key不写共享前缀长度.
+    // 读取时本来就要解码出所有的key, 每个key只和前一个key比较, 比较和复制都直接在缓冲区中进行.
+    // 页按内存中的大小分裂, 前缀压缩只减少chunk的字节数, 不会让一页放下更多的key
+    private int writePrefixCompressedKeys(DataBuffer buff, int keyLength) {
+        Object[] k = (Object[]) keys;
+        StorageDataType keyType = bTreeMap.getKeyType();
+        int start = buff.position();
+        if (keyLength < 2) {
+            keyType.write(buff, k, keyLength);
+            return 0;
+        }
+        int[] ends = new int[keyLength];
+        for (int i = 0; i < keyLength; i++) {
+            keyType.write(buff, k[i]);
+            ends[i] = buff.position() - start;
+        }
+        int plainLength = ends[keyLength - 1];
+        int out = start + plainLength;
+        for (int i = 0, prev = 0, last = 0; i < keyLength; i++) {
+            int end = ends[i];
+            int shared = 0;
+            if (i > 0) {
+                ByteBuffer b = buff.getBuffer();
+                int max = Math.min(last - prev, end - last);
+                while (shared < max && b.get(start + prev + shared) == b.get(start + last + shared)) {
+                    shared++;
+                }
+                buff.putVarInt(shared);
+            }
+            int suffix = end - last - shared;
+            buff.putVarInt(suffix);
+            // 扩容时复制的是旧缓冲区, 其中的数据不会再变
+            ByteBuffer src = buff.getBuffer().duplicate();
+            src.limit(start + end).position(start + last + shared);
+            buff.put(src);
+            prev = last;
+            last = end;
+        }
+        int length = buff.position() - out;
+        if (length >= plainLength) {
+            buff.position(out);
+            return 0;
+        }
+        ByteBuffer src = buff.getBuffer().duplicate();
+        src.limit(out + length).position(out);
+        buff.position(start).put(src);
+        return PageUtils.PAGE_PREFIX_KEYS;
+    }
+
+    void readKeys(ByteBuffer buff, int keyLength, int type) {
+        if ((type & PageUtils.PAGE_LONG_KEYS) != 0) {
+            long[] k = new long[keyLength];
+            long last = 0;
+            for (int i = 0; i < keyLength; i++) {
+                long v = DataUtils.readVarLong(buff);
+                last = i == 0 ? (v >>> 1) ^ -(v & 1) : last + v;
+                k[i] = last;
+            }
+            keys = k;
+        } else if ((type & PageUtils.PAGE_PREFIX_KEYS) != 0) {
+            StorageDataType keyType = bTreeMap.getKeyType();
+            Object[] k = new Object[keyLength];
+            byte[] key = new byte[64];
+            // key类型读取时会复制出自己的数据, 所有的key共用一个缓冲区
+            ByteBuffer scratch = ByteBuffer.wrap(key);
+            int length = 0;
+            for (int i = 0; i < keyLength; i++) {
+                int shared = i == 0 ? 0 : DataUtils.readVarInt(buff);
+                int suffix = DataUtils.readVarInt(buff);
+                if (shared > length) {
+                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                            "Illegal shared key prefix {0}, previous key length {1}", shared, length);
+                }
+                length = shared + suffix;
+                if (length > key.length) {
+                    key = Arrays.copyOf(key, Math.max(length, key.length * 2));
+                    scratch = ByteBuffer.wrap(key);
+                }
+                buff.get(key, shared, suffix);
+                scratch.limit(length).position(0);
+                k[i] = keyType.read(scratch);
+            }
+            keys = k;
+        } else {
+            Object[] k = new Object[keyLength];
+            bTreeMap.getKeyType().read(buff, k, keyLength);
+            keys = toKeys(k);
+        }
+    }
+
     @Override
     public int getMemory() {
         if (ASSERT) {
@@ -191,14 +392,15 @@ public abstract class LocalPage extends Page {
         buff.append(indent).append("chunkId: ").append(PageUtils.getPageChunkId(pos)).append('\n');
         // buff.append(indent).append("totalCount: ").append(getTotalCount()).append('\n');
         buff.append(indent).append("memory: ").append(memory).append('\n');
-        buff.append(indent).append("keyLength: ").append(keys.length).append('\n');
+        int keyLength = getLength(keys);
+        buff.append(indent).append("keyLength: ").append(keyLength).append('\n');
 
-        if (keys.length > 0) {
+        if (keyLength > 0) {
             buff.append(indent).append("keys: ");
-            for (int i = 0, len = keys.length; i < len; i++) {
+            for (int i = 0; i < keyLength; i++) {
                 if (i > 0)
                     buff.append(", ");
-                buff.append(keys[i]);
+                buff.append(getKey(keys, i));
             }
             buff.append('\n');
             getPrettyPageInfoRecursive(buff, indent, info);
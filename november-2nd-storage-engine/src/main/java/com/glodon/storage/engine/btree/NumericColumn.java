@@ -0,0 +1,372 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.storage.type.StorageDataType;
+import com.glodon.base.util.DataUtils;
+import com.glodon.base.value.Value;
+import com.glodon.base.value.ValueInt;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueTimestamp;
+
+/**
+ * 列页中的int, long和timestamp列, 按数值而不是逐个序列化的值保存.
+ * <p>
+ * 只有每个值按ValueInt, ValueLong或者ValueTimestamp的格式重新序列化后和原来的字节完全一样时才使用,
+ * 读取时值的类型支持setColumnValue就直接设置到行中, 否则逐行按同样的格式序列化后交给readColumn.
+ * timestamp拆成日期, 毫秒和纳秒三个数值流.
+ * 每个数值流在写入时选择最小的编码:
+ * 游程编码 [RLE][游程个数 varInt][值 zigzag varLong, 个数 varInt...],
+ * 减去最小值后按位打包 [FOR][最小值 varLong][位数 byte][long...],
+ * 相邻差值减去最小差值后按位打包 [DELTA][第一个值 varLong][最小差值 varLong][位数 byte][long...].
+ */
+final class NumericColumn {
+
+    private static final int KIND_INT = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_TIMESTAMP = 2;
+
+    private static final int RLE = 0;
+    private static final int FOR = 1;
+    private static final int DELTA = 2;
+
+    private final int kind;
+    private final long[][] streams;
+
+    private NumericColumn(int kind, long[][] streams) {
+        this.kind = kind;
+        this.streams = streams;
+    }
+
+    int getRowCount() {
+        return streams[0].length;
+    }
+
+    /**
+     * 解析从start开始按顺序写入的值, 不是int, long或timestamp列时返回null
+     */
+    static NumericColumn parse(ByteBuffer data, int start, int[] ends) {
+        int rowCount = ends.length;
+        if (rowCount == 0) {
+            return null;
+        }
+        ByteBuffer buff = data.duplicate();
+        buff.limit(ends[rowCount - 1]).position(start);
+        int kind = getKind(buff.get(start));
+        if (kind < 0) {
+            return null;
+        }
+        long[][] streams = new long[kind == KIND_TIMESTAMP ? 3 : 1][rowCount];
+        DataBuffer check = DataBuffer.create();
+        try {
+            for (int row = 0, from = start; row < rowCount; row++) {
+                int to = ends[row];
+                int tag = buff.get(from);
+                if (getKind(tag) != kind) {
+                    return null;
+                }
+                buff.position(from + 1);
+                if (kind == KIND_TIMESTAMP) {
+                    streams[0][row] = DataUtils.readVarLong(buff);
+                    streams[1][row] = DataUtils.readVarLong(buff);
+                    streams[2][row] = DataUtils.readVarLong(buff);
+                } else {
+                    streams[0][row] = readNumber(buff, tag);
+                }
+                if (buff.position() != to) {
+                    return null;
+                }
+                // 必须能原样还原
+                check.clear();
+                writeValue(check, kind, streams, row);
+                if (check.position() != to - from) {
+                    return null;
+                }
+                ByteBuffer b = check.getBuffer();
+                for (int i = 0, len = to - from; i < len; i++) {
+                    if (b.get(i) != data.get(from + i)) {
+                        return null;
+                    }
+                }
+                from = to;
+            }
+        } finally {
+            check.close();
+        }
+        return new NumericColumn(kind, streams);
+    }
+
+    private static int getKind(int tag) {
+        switch (tag) {
+            case StorageDataType.TYPE_INT:
+            case StorageDataType.TAG_INTEGER_NEGATIVE:
+            case StorageDataType.TAG_INTEGER_FIXED:
+                return KIND_INT;
+            case StorageDataType.TYPE_LONG:
+            case StorageDataType.TAG_LONG_NEGATIVE:
+            case StorageDataType.TAG_LONG_FIXED:
+                return KIND_LONG;
+            case StorageDataType.TYPE_TIMESTAMP:
+                return KIND_TIMESTAMP;
+            default:
+                if (tag >= StorageDataType.TAG_INTEGER_0_15 && tag < StorageDataType.TAG_INTEGER_0_15 + 16)
+                    return KIND_INT;
+                if (tag >= StorageDataType.TAG_LONG_0_7 && tag < StorageDataType.TAG_LONG_0_7 + 8)
+                    return KIND_LONG;
+                return -1;
+        }
+    }
+
+    private static long readNumber(ByteBuffer buff, int tag) {
+        switch (tag) {
+            case StorageDataType.TYPE_INT:
+                return DataUtils.readVarInt(buff);
+            case StorageDataType.TAG_INTEGER_NEGATIVE:
+                return -DataUtils.readVarInt(buff);
+            case StorageDataType.TAG_INTEGER_FIXED:
+                return buff.getInt();
+            case StorageDataType.TYPE_LONG:
+                return DataUtils.readVarLong(buff);
+            case StorageDataType.TAG_LONG_NEGATIVE:
+                return -DataUtils.readVarLong(buff);
+            case StorageDataType.TAG_LONG_FIXED:
+                return buff.getLong();
+            default:
+                if (tag >= StorageDataType.TAG_LONG_0_7)
+                    return tag - StorageDataType.TAG_LONG_0_7;
+                return tag - StorageDataType.TAG_INTEGER_0_15;
+        }
+    }
+
+    private static void writeValue(DataBuffer buff, int kind, long[][] streams, int row) {
+        switch (kind) {
+            case KIND_INT:
+                ValueInt.type.write(buff, (int) streams[0][row]);
+                break;
+            case KIND_LONG:
+                ValueLong.type.write(buff, streams[0][row]);
+                break;
+            default:
+                buff.put((byte) StorageDataType.TYPE_TIMESTAMP).putVarLong(streams[0][row])
+                        .putVarLong(streams[1][row]).putVarLong(streams[2][row]);
+        }
+    }
+
+    /**
+     * 第row行的值, 是ValueInt, ValueLong或ValueTimestamp
+     */
+    Value getValue(int row) {
+        switch (kind) {
+            case KIND_INT:
+                return ValueInt.get((int) streams[0][row]);
+            case KIND_LONG:
+                return ValueLong.get(streams[0][row]);
+            default:
+                return ValueTimestamp.fromDateValueAndNanos(streams[0][row],
+                        streams[1][row] * 1000000 + streams[2][row]);
+        }
+    }
+
+    /**
+     * 和上一行的值是否相同
+     */
+    boolean isSameAsPrevious(int row) {
+        for (long[] values : streams) {
+            if (values[row] != values[row - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把第row行的值设置到行对象中, 值的类型不能直接设置时按原来的格式序列化到buff后交给readColumn
+     */
+    void readColumn(StorageDataType valueType, int row, Object obj, int columnIndex, DataBuffer buff) {
+        if (valueType.setColumnValue(obj, columnIndex, getValue(row))) {
+            return;
+        }
+        buff.clear();
+        writeValue(buff, kind, streams, row);
+        valueType.readColumn(buff.getAndFlipBuffer(), obj, columnIndex);
+    }
+
+    void write(DataBuffer buff) {
+        buff.put((byte) kind).putVarInt(getRowCount());
+        for (long[] values : streams) {
+            writeStream(buff, values);
+        }
+    }
+
+    static NumericColumn read(ByteBuffer buff) {
+        int kind = buff.get();
+        int rowCount = DataUtils.readVarInt(buff);
+        long[][] streams = new long[kind == KIND_TIMESTAMP ? 3 : 1][];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = readStream(buff, rowCount);
+        }
+        return new NumericColumn(kind, streams);
+    }
+
+    private static void writeStream(DataBuffer buff, long[] values) {
+        int n = values.length;
+        long min = values[0], minDelta = n > 1 ? values[1] - values[0] : 0;
+        int runs = 1;
+        int rleLength = 0;
+        for (int i = 1; i < n; i++) {
+            long v = values[i];
+            min = Math.min(min, v);
+            minDelta = Math.min(minDelta, v - values[i - 1]);
+            if (v != values[i - 1]) {
+                rleLength += getRunLength(values[i - 1], runs);
+                runs = 1;
+            } else {
+                runs++;
+            }
+        }
+        rleLength += getRunLength(values[n - 1], runs);
+        long maxOffset = 0, maxDelta = 0;
+        for (int i = 0; i < n; i++) {
+            maxOffset |= values[i] - min;
+            if (i > 0)
+                maxDelta |= values[i] - values[i - 1] - minDelta;
+        }
+        int forWidth = 64 - Long.numberOfLeadingZeros(maxOffset);
+        int deltaWidth = 64 - Long.numberOfLeadingZeros(maxDelta);
+        long forLength = DataUtils.getVarLongLen(zigzag(min)) + 1 + getPackedLength(n, forWidth) * 8L;
+        long deltaLength = DataUtils.getVarLongLen(zigzag(values[0])) + DataUtils.getVarLongLen(zigzag(minDelta)) + 1
+                + getPackedLength(n - 1, deltaWidth) * 8L;
+        if (rleLength <= forLength && rleLength <= deltaLength) {
+            buff.put((byte) RLE);
+            writeRuns(buff, values);
+        } else if (forLength <= deltaLength) {
+            buff.put((byte) FOR).putVarLong(zigzag(min)).put((byte) forWidth);
+            long[] packed = new long[getPackedLength(n, forWidth)];
+            for (int i = 0; i < n; i++) {
+                pack(packed, i, forWidth, values[i] - min);
+            }
+            for (long p : packed) {
+                buff.putLong(p);
+            }
+        } else {
+            buff.put((byte) DELTA).putVarLong(zigzag(values[0])).putVarLong(zigzag(minDelta)).put((byte) deltaWidth);
+            long[] packed = new long[getPackedLength(n - 1, deltaWidth)];
+            for (int i = 1; i < n; i++) {
+                pack(packed, i - 1, deltaWidth, values[i] - values[i - 1] - minDelta);
+            }
+            for (long p : packed) {
+                buff.putLong(p);
+            }
+        }
+    }
+
+    private static void writeRuns(DataBuffer buff, long[] values) {
+        int n = values.length;
+        int runCount = 1;
+        for (int i = 1; i < n; i++) {
+            if (values[i] != values[i - 1])
+                runCount++;
+        }
+        buff.putVarInt(runCount);
+        int runStart = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i == n || values[i] != values[i - 1]) {
+                buff.putVarLong(zigzag(values[runStart])).putVarInt(i - runStart);
+                runStart = i;
+            }
+        }
+    }
+
+    private static long[] readStream(ByteBuffer buff, int n) {
+        long[] values = new long[n];
+        int scheme = buff.get();
+        switch (scheme) {
+            case RLE: {
+                int runCount = DataUtils.readVarInt(buff);
+                for (int r = 0, i = 0; r < runCount; r++) {
+                    long v = unzigzag(DataUtils.readVarLong(buff));
+                    int end = i + DataUtils.readVarInt(buff);
+                    while (i < end) {
+                        values[i++] = v;
+                    }
+                }
+                break;
+            }
+            case FOR: {
+                long min = unzigzag(DataUtils.readVarLong(buff));
+                int width = buff.get();
+                long[] packed = readPacked(buff, n, width);
+                for (int i = 0; i < n; i++) {
+                    values[i] = min + unpack(packed, i, width);
+                }
+                break;
+            }
+            case DELTA: {
+                long v = unzigzag(DataUtils.readVarLong(buff));
+                long minDelta = unzigzag(DataUtils.readVarLong(buff));
+                int width = buff.get();
+                long[] packed = readPacked(buff, n - 1, width);
+                values[0] = v;
+                for (int i = 1; i < n; i++) {
+                    v += minDelta + unpack(packed, i - 1, width);
+                    values[i] = v;
+                }
+                break;
+            }
+            default:
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Unknown numeric column encoding {0}", scheme);
+        }
+        return values;
+    }
+
+    private static long[] readPacked(ByteBuffer buff, int n, int width) {
+        long[] packed = new long[getPackedLength(n, width)];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = buff.getLong();
+        }
+        return packed;
+    }
+
+    private static int getRunLength(long value, int count) {
+        return DataUtils.getVarLongLen(zigzag(value)) + DataUtils.getVarIntLen(count);
+    }
+
+    private static int getPackedLength(int n, int width) {
+        return (int) (((long) Math.max(n, 0) * width + 63) >>> 6);
+    }
+
+    private static void pack(long[] packed, int index, int width, long x) {
+        if (width == 0)
+            return;
+        long bitPos = (long) index * width;
+        int i = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        packed[i] |= x << shift;
+        if (shift + width > 64) {
+            packed[i + 1] |= x >>> (64 - shift);
+        }
+    }
+
+    private static long unpack(long[] packed, int index, int width) {
+        if (width == 0)
+            return 0;
+        long bitPos = (long) index * width;
+        int i = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        long x = packed[i] >>> shift;
+        if (shift + width > 64) {
+            x |= packed[i + 1] << (64 - shift);
+        }
+        return width == 64 ? x : x & ((1L << width) - 1);
+    }
+
+    private static long zigzag(long x) {
+        return (x << 1) ^ (x >> 63);
+    }
+
+    private static long unzigzag(long x) {
+        return (x >>> 1) ^ -(x & 1);
+    }
+}
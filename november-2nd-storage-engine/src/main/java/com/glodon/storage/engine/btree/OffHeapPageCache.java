@@ -0,0 +1,257 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 页缓存的第二层, 在堆外内存中保存已经展开的序列化页, 页从堆上的缓存中淘汰后再次访问时不用读文件和解压.
+ * <p>
+ * 堆外内存按SLAB_SIZE分配成多个direct ByteBuffer, 每个slab切成固定大小的块, 一个页占用若干个块,
+ * 所有页按最近访问的顺序淘汰, 不同大小的页可以共用任何空闲的块. 读取时复制到堆上, 块被重用后不影响已经解码的页.
+ * <p>
+ * 查找不加锁, 写时复制删除的页大多从来没有放进堆外缓存, 不用进入监视器. 读取时只在锁内固定页和调整淘汰顺序,
+ * 复制在锁外进行, 固定的页被删除后等读取结束再释放它的块.
+ */
+final class OffHeapPageCache {
+
+    private static final int BLOCK_SHIFT = 10;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int SLAB_SHIFT = 22;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int BLOCKS_PER_SLAB = SLAB_SIZE / BLOCK_SIZE;
+
+    private final int maxSlabs;
+    // 只在增加slab和clear时替换, 读取时使用固定页时拿到的数组
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    // 空闲块的编号: slab序号 * BLOCKS_PER_SLAB + 块在slab中的序号
+    private int[] freeBlocks = new int[0];
+    private int freeCount;
+    // clear之后递增, 之前的页在读取结束时不再释放块
+    private int generation;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    // 淘汰顺序的链表头, next是最近访问的一端, prev是最旧的一端
+    private final Entry head = new Entry(0, null, 0, 0, null, 0);
+    private long usedMemory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Entry {
+        final long key;
+        final Object owner;
+        final long pos;
+        final int length;
+        final int[] blocks;
+        final int generation;
+        // 以下字段只在锁内访问
+        Entry prev;
+        Entry next;
+        int pins;
+        boolean removed;
+
+        Entry(long key, Object owner, long pos, int length, int[] blocks, int generation) {
+            this.key = key;
+            this.owner = owner;
+            this.pos = pos;
+            this.length = length;
+            this.blocks = blocks;
+            this.generation = generation;
+        }
+
+        boolean matches(Object owner, long pos) {
+            return this.owner == owner && this.pos == pos;
+        }
+    }
+
+    OffHeapPageCache(long maxMemory) {
+        maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCKS_PER_SLAB, maxMemory >>> SLAB_SHIFT));
+        head.prev = head.next = head;
+    }
+
+    /**
+     * 读取owner中pos位置的页, 没有时返回null, 返回的是堆上的副本
+     */
+    ByteBuffer get(long key, Object owner, long pos) {
+        Entry e = entries.get(key);
+        if (e == null || !e.matches(owner, pos)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        ByteBuffer[] slabs;
+        synchronized (this) {
+            if (e.removed) {
+                misses.incrementAndGet();
+                return null;
+            }
+            e.pins++;
+            unlink(e);
+            link(e);
+            slabs = this.slabs;
+        }
+        byte[] data = new byte[e.length];
+        try {
+            for (int i = 0, off = 0; off < e.length; i++, off += BLOCK_SIZE) {
+                ByteBuffer slab = slabs[e.blocks[i] / BLOCKS_PER_SLAB].duplicate();
+                slab.position(getOffset(e.blocks[i]));
+                slab.get(data, off, Math.min(BLOCK_SIZE, e.length - off));
+            }
+        } finally {
+            synchronized (this) {
+                if (--e.pins == 0 && e.removed) {
+                    freeBlocks(e);
+                }
+            }
+        }
+        hits.incrementAndGet();
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * 保存buff中从position到limit的数据, 已经有这个页时忽略, 页太大或者空闲的块都被读取固定时不保存
+     */
+    void putIfAbsent(long key, Object owner, long pos, ByteBuffer buff) {
+        Entry old = entries.get(key);
+        if (old != null && old.matches(owner, pos)) {
+            return;
+        }
+        int length = buff.remaining();
+        int blockCount = (length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        if (length == 0 || blockCount > maxSlabs * BLOCKS_PER_SLAB / 2) {
+            return;
+        }
+        synchronized (this) {
+            old = entries.get(key);
+            if (old != null) {
+                if (old.matches(owner, pos)) {
+                    return;
+                }
+                remove(old);
+            }
+            while (freeCount < blockCount && slabs.length < maxSlabs) {
+                addSlab();
+            }
+            while (freeCount < blockCount && head.prev != head) {
+                remove(head.prev);
+            }
+            if (freeCount < blockCount) {
+                return;
+            }
+            int[] blocks = new int[blockCount];
+            ByteBuffer src = buff.duplicate();
+            for (int i = 0; i < blockCount; i++) {
+                int block = freeBlocks[--freeCount];
+                blocks[i] = block;
+                src.limit(Math.min(buff.limit(), src.position() + BLOCK_SIZE));
+                ByteBuffer slab = slabs[block / BLOCKS_PER_SLAB];
+                slab.position(getOffset(block));
+                slab.put(src);
+            }
+            Entry e = new Entry(key, owner, pos, length, blocks, generation);
+            link(e);
+            entries.put(key, e);
+            usedMemory += (long) blockCount * BLOCK_SIZE;
+        }
+    }
+
+    void remove(long key, Object owner, long pos) {
+        Entry e = entries.get(key);
+        if (e == null || !e.matches(owner, pos)) {
+            return;
+        }
+        synchronized (this) {
+            if (!e.removed) {
+                remove(e);
+            }
+        }
+    }
+
+    private void remove(Entry e) {
+        entries.remove(e.key, e);
+        unlink(e);
+        e.removed = true;
+        if (e.pins == 0) {
+            freeBlocks(e);
+        }
+    }
+
+    /**
+     * 删除owner的所有页
+     */
+    synchronized void removeAll(Object owner) {
+        for (Entry e = head.next; e != head; ) {
+            Entry next = e.next;
+            if (e.owner == owner) {
+                remove(e);
+            }
+            e = next;
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry e = head.next; e != head; e = e.next) {
+            e.removed = true;
+        }
+        entries.clear();
+        head.prev = head.next = head;
+        slabs = new ByteBuffer[0];
+        freeBlocks = new int[0];
+        freeCount = 0;
+        usedMemory = 0;
+        generation++;
+    }
+
+    private void link(Entry e) {
+        e.prev = head;
+        e.next = head.next;
+        head.next.prev = e;
+        head.next = e;
+    }
+
+    private static void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+    }
+
+    private void freeBlocks(Entry e) {
+        if (e.generation != generation) {
+            return;
+        }
+        for (int block : e.blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+        usedMemory -= (long) e.blocks.length * BLOCK_SIZE;
+    }
+
+    private void addSlab() {
+        int slabIndex = slabs.length;
+        slabs = Arrays.copyOf(slabs, slabIndex + 1);
+        slabs[slabIndex] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        freeBlocks = Arrays.copyOf(freeBlocks, (slabIndex + 1) * BLOCKS_PER_SLAB);
+        // 倒序放入, 先使用slab开头的块
+        for (int i = BLOCKS_PER_SLAB - 1; i >= 0; i--) {
+            freeBlocks[freeCount++] = slabIndex * BLOCKS_PER_SLAB + i;
+        }
+    }
+
+    private static int getOffset(int block) {
+        return (block % BLOCKS_PER_SLAB) << BLOCK_SHIFT;
+    }
+
+    long getMaxMemory() {
+        return (long) maxSlabs * SLAB_SIZE;
+    }
+
+    synchronized long getUsedMemory() {
+        return usedMemory;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -2,6 +2,7 @@ package com.glodon.storage.engine.btree;
 
 import java.nio.ByteBuffer;
 
+import com.glodon.base.storage.ColumnPredicate;
 import com.glodon.base.storage.DataBuffer;
 import com.glodon.base.compress.Compressor;
 import com.glodon.base.exceptions.UnificationException;
@@ -69,6 +70,13 @@ public class Page {
         throw ie();
     }
 
+    /**
+     * 叶子页中每行是否满足predicate
+     */
+    public boolean[] filter(ColumnPredicate predicate) {
+        throw ie();
+    }
+
     public boolean isEmpty() {
         throw ie();
     }
@@ -131,6 +139,10 @@ public class Page {
         throw ie();
     }
 
+    public Page copyLeaf(Object[] keys, Object[] values, int from, int to) {
+        throw ie();
+    }
+
     public void remove(int index) {
         throw ie();
     }
@@ -193,21 +205,51 @@ public class Page {
 
     public static Page read(BTreeMap<?, ?> map, FileStorage fileStorage, long pos, long filePos,
                             int pageLength) {
-        ByteBuffer buff = readPageBuff(fileStorage, filePos, pageLength);
+        return read(map, fileStorage, pos, filePos, pageLength, false);
+    }
+
+    /**
+     * @param mapped 为true时从文件映射的切片中解码, 不再为每个页分配堆内存和发起系统调用
+     */
+    public static Page read(BTreeMap<?, ?> map, FileStorage fileStorage, long pos, long filePos,
+                            int pageLength, boolean mapped) {
+        ByteBuffer buff = readPageBuff(fileStorage, filePos, pageLength, mapped);
+        int start = buff.position();
         int type = PageUtils.getPageType(pos);
         Page p = create(map, type);
         p.pos = pos;
         int chunkId = PageUtils.getPageChunkId(pos);
         int offset = PageUtils.getPageOffset(pos);
         p.read(buff, chunkId, offset, pageLength, false);
+        PageCache.MapCache cache = map.getBTreeStorage().getPageCache();
+        if (cache != null && cache.hasOffHeapCache()) {
+            // 压缩页在expandPage中已经保存了展开后的数据, 这里只保存没有压缩的页
+            ByteBuffer b = buff.duplicate();
+            b.limit(start + pageLength).position(start);
+            cache.putSerialized(pos, b);
+        }
+        return p;
+    }
+
+    /**
+     * 从堆外缓存中保存的展开后的页解码, 这些数据已经校验过, 不再检查校验值
+     */
+    static Page read(BTreeMap<?, ?> map, long pos, ByteBuffer buff) {
+        Page p = create(map, PageUtils.getPageType(pos));
+        p.pos = pos;
+        p.read(buff, PageUtils.getPageChunkId(pos), PageUtils.getPageOffset(pos), buff.remaining(), true);
         return p;
     }
 
-    private static ByteBuffer readPageBuff(FileStorage fileStorage, long filePos, int pageLength) {
+    private static ByteBuffer readPageBuff(FileStorage fileStorage, long filePos, int pageLength,
+                                           boolean mapped) {
         if (pageLength < 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1} ", pageLength, filePos);
         }
+        if (mapped && fileStorage.map()) {
+            return fileStorage.readMapped(filePos, pageLength);
+        }
         return fileStorage.readFully(filePos, pageLength);
     }
 
@@ -241,6 +283,31 @@ public class Page {
         return p;
     }
 
+    /**
+     * 与gotoLeafPage相同, 但是叶子页不在内存中且它的Bloom过滤器确定不包含key时返回null, 不读取叶子页
+     */
+    Page gotoLeafPageIfMayContain(Object key) {
+        Page p = this;
+        long hash = 0;
+        boolean hashed = false;
+        while (p.isNode()) {
+            int index = p.getPageIndex(key);
+            PageReference ref = p.getChildren()[index];
+            BloomFilter filter = ref.bloomFilter;
+            if (filter != null && ref.page == null) {
+                if (!hashed) {
+                    hash = BloomFilter.hash(bTreeMap, key);
+                    hashed = true;
+                }
+                if (!filter.mightContain(hash)) {
+                    return null;
+                }
+            }
+            p = p.getChildPage(index);
+        }
+        return p;
+    }
+
     public PageReference[] getChildren() {
         throw ie();
     }
@@ -257,8 +324,8 @@ public class Page {
         }
     }
 
-    static void writeCheckValue(DataBuffer buff, int chunkId, int start, int pageLength, int checkPos) {
-        int check = DataUtils.getCheckValue(chunkId) ^ DataUtils.getCheckValue(start)
+    static void writeCheckValue(DataBuffer buff, int chunkId, int offset, int pageLength, int checkPos) {
+        int check = DataUtils.getCheckValue(chunkId) ^ DataUtils.getCheckValue(offset)
                 ^ DataUtils.getCheckValue(pageLength);
         buff.putShort(checkPos, (short) check);
     }
@@ -271,50 +338,83 @@ public class Page {
         }
     }
 
+    /**
+     * 快速压缩用LZ4, 高压缩用Deflate, 节省的空间达不到阈值时认为页不可压缩, 按原样保存
+     */
     void compressPage(DataBuffer buff, int compressStart, int type, int typePos) {
         int expLen = buff.position() - compressStart;
         if (expLen > 16) {
             BTreeStore storage = bTreeMap.getBTreeStorage();
             int compressionLevel = storage.getCompressionLevel();
-            if (compressionLevel > 0) {
+            if (compressionLevel > 0 && storage.tryCompressPage()) {
+                PageCompressor pc = PageCompressor.get();
                 Compressor compressor;
                 int compressType;
-                if (compressionLevel == 1) {
-                    compressor = storage.getCompressorFast();
-                    compressType = PageUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = storage.getCompressorHigh();
+                if (compressionLevel == Compressor.DEFLATE) {
+                    compressor = pc.getDeflate();
                     compressType = PageUtils.PAGE_COMPRESSED_HIGH;
+                } else {
+                    compressor = pc.lz4;
+                    compressType = PageUtils.PAGE_COMPRESSED_LZ4;
                 }
-                byte[] exp = new byte[expLen];
-                buff.position(compressStart).get(exp);
-                byte[] comp = new byte[expLen * 2];
+                byte[] exp = pc.getInput(expLen);
+                buff.position(compressStart);
+                buff.getBuffer().get(exp, 0, expLen);
+                byte[] comp = pc.getOutput(expLen * 2);
                 int compLen = compressor.compress(exp, expLen, comp, 0);
-                int plus = DataUtils.getVarIntLen(compLen - expLen);
-                if (compLen + plus < expLen) {
+                int plus = DataUtils.getVarIntLen(expLen - compLen);
+                long savings = expLen - compLen - plus;
+                if (savings > 0 && savings * 100 >= (long) expLen * storage.getCompressMinSavings()) {
                     buff.position(typePos).put((byte) (type + compressType));
                     buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
+                    storage.setPageCompressed(true);
+                } else {
+                    buff.position(compressStart + expLen);
+                    storage.setPageCompressed(false);
                 }
             }
         }
     }
 
-    ByteBuffer expandPage(ByteBuffer buff, int type, int start, int pageLength) {
-        boolean compressed = (type & PageUtils.PAGE_COMPRESSED) != 0;
-        if (compressed) {
-            Compressor compressor;
-            if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = bTreeMap.getBTreeStorage().getCompressorHigh();
-            } else {
-                compressor = bTreeMap.getBTreeStorage().getCompressorFast();
-            }
+    /**
+     * 有堆外缓存时还把页头和展开后的数据拼成一个没有压缩的页保存到堆外缓存中, 下次不用再读文件和解压
+     *
+     * @param typePos 页头中压缩类型所在的位置
+     */
+    ByteBuffer expandPage(ByteBuffer buff, int type, int typePos, int start, int pageLength) {
+        if (PageUtils.isCompressed(type)) {
+            int headerLength = buff.position() - start;
+            PageCompressor pc = PageCompressor.get();
+            Compressor compressor = pc.getExpander(type);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
-            byte[] comp = DataUtils.newBytes(compLen);
-            buff.get(comp);
+            byte[] comp;
+            int compPos;
+            if (buff.hasArray()) {
+                comp = buff.array();
+                compPos = buff.arrayOffset() + buff.position();
+            } else {
+                comp = pc.getInput(compLen);
+                compPos = 0;
+                buff.duplicate().get(comp, 0, compLen);
+            }
+            buff.position(buff.position() + compLen);
             int l = compLen + lenAdd;
+            PageCache.MapCache cache = pos == 0 ? null : bTreeMap.getBTreeStorage().getPageCache();
+            if (cache != null && cache.hasOffHeapCache()) {
+                byte[] page = new byte[headerLength + l];
+                ByteBuffer header = buff.duplicate();
+                header.position(start);
+                header.get(page, 0, headerLength);
+                compressor.expand(comp, compPos, compLen, page, headerLength, l);
+                ByteBuffer image = ByteBuffer.wrap(page);
+                image.putInt(0, page.length);
+                image.put(typePos - start, (byte) (type & ~(PageUtils.PAGE_COMPRESSED | PageUtils.PAGE_COMPRESSED_LZ4)));
+                cache.putSerialized(pos, image);
+                return ByteBuffer.wrap(page, headerLength, l).slice();
+            }
             ByteBuffer newBuff = ByteBuffer.allocate(l);
-            compressor.expand(comp, 0, compLen, newBuff.array(), newBuff.arrayOffset(), l);
+            compressor.expand(comp, compPos, compLen, newBuff.array(), newBuff.arrayOffset(), l);
             return newBuff;
         }
         return buff;
@@ -324,10 +424,9 @@ public class Page {
         if (pos != 0) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Page already stored");
         }
-        pos = PageUtils.getPagePos(chunk.id, start, type);
-        chunk.pagePositionToLengthMap.put(pos, pageLength);
+        pos = PageUtils.getPagePos(chunk.id, chunk.getOffset(start), type);
+        chunk.addPage(pos, pageLength);
         chunk.sumOfPageLength += pageLength;
-        chunk.pageCount++;
 
         bTreeMap.getBTreeStorage().cachePage(pos, this, getMemory());
 
@@ -0,0 +1,303 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.glodon.base.conf.Config;
+import com.glodon.base.storage.cache.CacheLongKeyLIRS;
+import com.glodon.base.storage.cache.CacheLongKeyTinyLFU;
+import com.glodon.base.storage.cache.LongKeyCache;
+import com.glodon.base.util.DataUtils;
+
+/**
+ * 同一个Storage中所有map共享的页缓存, 只有一个内存上限, 访问多的map可以使用其他map用不到的内存.
+ * <p>
+ * 页的pos只在一个map中唯一, 每个map的每个chunk在缓存中有自己的编号, 缓存的key由这个编号和页在chunk中的偏移组成,
+ * 不同map的页不会使用同一个key. 编号用完后会回绕, 所以读取时仍然检查页所属的map和pos.
+ * 每个map占用的内存由缓存的回调累计, 不用遍历整个缓存.
+ * <p>
+ * 淘汰策略默认是LIRS, 访问频率差别大又有一次性扫描时可以选择W-TinyLFU, 见{@link Config#getStorageCachePolicy()}.
+ * <p>
+ * 可以再加一层堆外缓存({@link OffHeapPageCache}), 保存从文件读取的页展开后的字节, 页从堆上淘汰后从这里重新解码.
+ */
+public final class PageCache {
+
+    public static final String POLICY_LIRS = "LIRS";
+    public static final String POLICY_TINY_LFU = "TINY_LFU";
+
+    private final String policy;
+    private final LongKeyCache<Page> cache;
+    private final OffHeapPageCache offHeapCache;
+    // chunk编号占pos中chunk id的位置, 0不使用
+    private static final int MAX_CHUNK_KEY = (1 << 30) - 1;
+    private static final long POS_IN_CHUNK_MASK = (1L << 34) - 1;
+
+    private final AtomicInteger nextChunkKey = new AtomicInteger(1);
+    private final List<MapCache> mapCaches = new CopyOnWriteArrayList<>();
+
+    public PageCache(long maxMemory) {
+        this(maxMemory, 0);
+    }
+
+    public PageCache(long maxMemory, long offHeapMemory) {
+        this(maxMemory, offHeapMemory, POLICY_LIRS);
+    }
+
+    public PageCache(Config config) {
+        this(config.getStorageCacheSize(), config.getOffHeapCacheSize(), config.getStorageCachePolicy());
+    }
+
+    /**
+     * @param offHeapMemory 堆外缓存的内存上限, 小于等于0时不使用堆外缓存
+     * @param policy        POLICY_LIRS或者POLICY_TINY_LFU
+     */
+    public PageCache(long maxMemory, long offHeapMemory, String policy) {
+        this.policy = policy.toUpperCase();
+        if (POLICY_LIRS.equals(this.policy)) {
+            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+            cc.maxMemory = maxMemory;
+            cache = new CacheLongKeyLIRS<>(cc);
+        } else if (POLICY_TINY_LFU.equals(this.policy)) {
+            cache = new CacheLongKeyTinyLFU<>(maxMemory);
+        } else {
+            throw DataUtils.newIllegalArgumentException("Unknown cache policy: {0}", policy);
+        }
+        offHeapCache = offHeapMemory > 0 ? new OffHeapPageCache(offHeapMemory) : null;
+        cache.setListener(new LongKeyCache.Listener<Page>() {
+            @Override
+            public void onAdded(long key, Page page, int memory) {
+                page.bTreeMap.getBTreeStorage().getPageCache().usedMemory.addAndGet(memory);
+            }
+
+            @Override
+            public void onRemoved(long key, Page page, int memory) {
+                page.bTreeMap.getBTreeStorage().getPageCache().usedMemory.addAndGet(-memory);
+            }
+        });
+    }
+
+    /**
+     * 每次打开map都使用新的chunk编号, 关闭后又重新打开的map不会读到以前的页
+     */
+    MapCache register(BTreeMap<?, ?> map) {
+        MapCache mc = new MapCache(map);
+        mapCaches.add(mc);
+        return mc;
+    }
+
+    private int nextChunkKey() {
+        int key;
+        do {
+            key = nextChunkKey.getAndIncrement() & MAX_CHUNK_KEY;
+        } while (key == 0);
+        return key;
+    }
+
+    public long getMaxMemory() {
+        return cache.getMaxMemory();
+    }
+
+    public void setMaxMemory(long maxMemory) {
+        cache.setMaxMemory(maxMemory);
+    }
+
+    public long getUsedMemory() {
+        return cache.getUsedMemory();
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * 堆上缓存的命中率, 用来比较不同的淘汰策略
+     */
+    public double getHitRate() {
+        long hits = cache.getHits(), total = hits + cache.getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getOffHeapMaxMemory() {
+        return offHeapCache == null ? 0 : offHeapCache.getMaxMemory();
+    }
+
+    public long getOffHeapUsedMemory() {
+        return offHeapCache == null ? 0 : offHeapCache.getUsedMemory();
+    }
+
+    public long getOffHeapHits() {
+        return offHeapCache == null ? 0 : offHeapCache.getHits();
+    }
+
+    public long getOffHeapMisses() {
+        return offHeapCache == null ? 0 : offHeapCache.getMisses();
+    }
+
+    /**
+     * 当前打开的每个map的使用情况
+     */
+    public List<MapCache> getMapCaches() {
+        return new ArrayList<>(mapCaches);
+    }
+
+    public void clear() {
+        cache.clear();
+        for (MapCache mc : mapCaches) {
+            mc.usedMemory.set(0);
+        }
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+    }
+
+    /**
+     * 一个map在共享缓存中的视图, 统计这个map的命中次数和占用的内存
+     */
+    public final class MapCache {
+
+        private final BTreeMap<?, ?> map;
+        // 下标是chunk id, 0表示还没有分配编号; 编号分配后不再改变, 数组只在扩大时替换
+        private volatile int[] chunkKeys = new int[16];
+        private final AtomicLong usedMemory = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        private MapCache(BTreeMap<?, ?> map) {
+            this.map = map;
+        }
+
+        public String getMapName() {
+            return map.getName();
+        }
+
+        private long getKey(long pos) {
+            int chunkId = PageUtils.getPageChunkId(pos);
+            int[] keys = chunkKeys;
+            int chunkKey = chunkId < keys.length ? keys[chunkId] : 0;
+            if (chunkKey == 0) {
+                chunkKey = newChunkKey(chunkId);
+            }
+            return ((long) chunkKey << 34) | (pos & POS_IN_CHUNK_MASK);
+        }
+
+        private synchronized int newChunkKey(int chunkId) {
+            int[] keys = chunkKeys;
+            if (chunkId >= keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(chunkId + 1, keys.length * 2));
+            } else if (keys[chunkId] != 0) {
+                return keys[chunkId];
+            }
+            keys[chunkId] = nextChunkKey();
+            chunkKeys = keys;
+            return keys[chunkId];
+        }
+
+        private boolean isOwnPage(Page p, long pos) {
+            return p != null && p.bTreeMap == map && p.pos == pos;
+        }
+
+        Page get(long pos) {
+            Page p = cache.get(getKey(pos));
+            if (isOwnPage(p, pos)) {
+                hits.incrementAndGet();
+                return p;
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        boolean containsKey(long pos) {
+            return isOwnPage(cache.peek(getKey(pos)), pos);
+        }
+
+        void put(long pos, Page page, int memory) {
+            cache.put(getKey(pos), page, memory);
+        }
+
+        void remove(long pos) {
+            if (containsKey(pos)) {
+                cache.remove(getKey(pos));
+            }
+        }
+
+        boolean hasOffHeapCache() {
+            return offHeapCache != null;
+        }
+
+        /**
+         * 堆外缓存中展开后的页, 没有时返回null
+         */
+        ByteBuffer getSerialized(long pos) {
+            return offHeapCache == null ? null : offHeapCache.get(getKey(pos), this, pos);
+        }
+
+        /**
+         * 保存buff中从position到limit的页数据, 页已经在堆外缓存中时忽略
+         */
+        void putSerialized(long pos, ByteBuffer buff) {
+            if (offHeapCache != null) {
+                offHeapCache.putIfAbsent(getKey(pos), this, pos, buff);
+            }
+        }
+
+        /**
+         * 页被删除后它的pos可能被新chunk中的页重用, 所有类型的页都要从堆外缓存中删除
+         */
+        void removeSerialized(long pos) {
+            if (offHeapCache != null) {
+                offHeapCache.remove(getKey(pos), this, pos);
+            }
+        }
+
+        /**
+         * 只删除这个map的页, 这个map没有页在缓存中时不用遍历, 删完就停止
+         */
+        void clear() {
+            if (usedMemory.get() <= 0) {
+                return;
+            }
+            for (long key : cache.keySet()) {
+                Page p = cache.peek(key);
+                if (p != null && p.bTreeMap == map) {
+                    cache.remove(key);
+                    if (usedMemory.get() <= 0) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void close() {
+            mapCaches.remove(this);
+            clear();
+            if (offHeapCache != null) {
+                offHeapCache.removeAll(this);
+            }
+        }
+
+        public long getUsedMemory() {
+            return usedMemory.get();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.glodon.storage.engine.btree;
+
+import com.glodon.base.compress.CompressDeflate;
+import com.glodon.base.compress.CompressLZ4;
+import com.glodon.base.compress.CompressLZF;
+import com.glodon.base.compress.Compressor;
+import com.glodon.base.util.DataUtils;
+
+/**
+ * 页压缩用到的压缩器和缓冲区, 每个线程一份, 保存和读取页时不用每次分配.
+ */
+final class PageCompressor {
+
+    private static final ThreadLocal<PageCompressor> INSTANCE = ThreadLocal.withInitial(PageCompressor::new);
+
+    // 超过这个大小的缓冲区用完不保留
+    private static final int MAX_CACHED_BUFFER = 4 * 1024 * 1024;
+
+    final CompressLZ4 lz4 = new CompressLZ4();
+    private CompressLZF lzf;
+    private CompressDeflate deflate;
+
+    private byte[] input;
+    private byte[] output;
+
+    static PageCompressor get() {
+        return INSTANCE.get();
+    }
+
+    Compressor getLZF() {
+        if (lzf == null) {
+            lzf = new CompressLZF();
+        }
+        return lzf;
+    }
+
+    Compressor getDeflate() {
+        if (deflate == null) {
+            deflate = new CompressDeflate();
+        }
+        return deflate;
+    }
+
+    /**
+     * 根据页类型中的压缩标记选择解压用的压缩器
+     */
+    Compressor getExpander(int type) {
+        if ((type & PageUtils.PAGE_COMPRESSED_HIGH) == PageUtils.PAGE_COMPRESSED_HIGH) {
+            return getDeflate();
+        } else if ((type & PageUtils.PAGE_COMPRESSED) != 0) {
+            return getLZF();
+        }
+        return lz4;
+    }
+
+    byte[] getInput(int len) {
+        byte[] b = input;
+        if (b == null || b.length < len) {
+            b = DataUtils.newBytes(len);
+            if (len <= MAX_CACHED_BUFFER)
+                input = b;
+        }
+        return b;
+    }
+
+    byte[] getOutput(int len) {
+        byte[] b = output;
+        if (b == null || b.length < len) {
+            b = DataUtils.newBytes(len);
+            if (len <= MAX_CACHED_BUFFER)
+                output = b;
+        }
+        return b;
+    }
+}
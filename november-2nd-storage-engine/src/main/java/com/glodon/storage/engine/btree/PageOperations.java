@@ -6,6 +6,7 @@ import com.glodon.base.exceptions.UnificationException;
 import com.glodon.base.value.ValueLong;
 import com.glodon.base.storage.page.PageOperation;
 import com.glodon.base.storage.page.PageOperationHandler;
+import com.glodon.base.storage.type.StorageDataType;
 
 /**
  * 数据页操作基类
@@ -30,6 +31,7 @@ public abstract class PageOperations {
         Page p;
         PageReference pRef;
         Object result;
+        volatile long redoLsn;
 
         ChildOperation childOperation;
 
@@ -53,8 +55,22 @@ public abstract class PageOperations {
             return (R) result;
         }
 
+        public long getRedoLsn() {
+            return redoLsn;
+        }
+
+        // 持有map的共享锁, 保存时序列化脏页的过程不会看到写了一半的页
         @Override
         public PageOperationResult run(PageOperationHandler poHandler) {
+            map.acquireSharedLock();
+            try {
+                return runLocked(poHandler);
+            } finally {
+                map.releaseSharedLock();
+            }
+        }
+
+        private PageOperationResult runLocked(PageOperationHandler poHandler) {
             if (p == null) {
                 p = gotoLeafPage();
                 pRef = p.getRef();
@@ -90,11 +106,15 @@ public abstract class PageOperations {
             int index = getKeyIndex();
             result = writeLocal(index);
 
-            if (index < 0 && p.needSplit()) {
+            if (needSplit(index)) {
                 childOperation = splitLeafPage(p);
             }
         }
 
+        protected boolean needSplit(int index) {
+            return index < 0 && p.needSplit();
+        }
+
         private PageOperationResult runChildOperation(PageOperationHandler poHandler) {
             if (childOperation.run(poHandler)) {
                 childOperation = null;
@@ -114,6 +134,20 @@ public abstract class PageOperations {
 
         protected abstract Object writeLocal(int index);
 
+        // 在持有叶子页锁时调用, 保证同一个key的日志顺序与写入顺序一致, 同时累计未保存的数据量
+        protected void afterWrite(int type, Object value) {
+            afterWrite(type, key, value);
+        }
+
+        protected void afterWrite(int type, Object key, Object value) {
+            redoLsn = map.writeRedoLog(type, key, value);
+            int memory = map.getKeyType().getMemory(key);
+            if (value != null) {
+                memory += map.getValueType().getMemory(value);
+            }
+            map.getBTreeStorage().addUnsavedMemory(memory);
+        }
+
         protected void insertLeaf(int index, V value) {
             //复制并插入新的v
             index = -index - 1;
@@ -153,7 +187,9 @@ public abstract class PageOperations {
 
         @Override
         protected Object writeLocal(int index) {
-            p.markDirty(true);
+            // gotoLeafPage和真正写入可能不在同一次run中, 中间如果发生了保存, 父节点已经不是脏页了
+            markDirtyPages();
+            afterWrite(RedoLog.TYPE_PUT, value);
             if (index < 0) {
                 insertLeaf(index, value);
                 return null;
@@ -163,6 +199,78 @@ public abstract class PageOperations {
         }
     }
 
+    /**
+     * 批量写入已排序的key, 每次定位一个叶子页, 把落在该页范围内的key合并后只复制一次,
+     * 合并后的页超过分裂大小时停止, 剩下的key由下一个PutAll继续写入, 结果是下一个要写入的下标
+     */
+    public static class PutAll<K, V> extends SingleWrite<K, V, Integer> {
+        private final K[] keys;
+        private final V[] values;
+        private final int from;
+        private Object upperBound;
+
+        public PutAll(BTreeMap<K, V> map, K[] keys, V[] values, int from,
+                      AsyncHandler<AsyncResult<Integer>> resultHandler) {
+            super(map, keys[from], resultHandler);
+            this.keys = keys;
+            this.values = values;
+            this.from = from;
+        }
+
+        @Override
+        protected boolean isMarkDirtyEnabled() {
+            return true;
+        }
+
+        // 记下叶子页的上界, 大于等于上界的key属于右边的叶子页
+        @Override
+        protected Page gotoLeafPage() {
+            upperBound = null;
+            Page p = map.getRootPage();
+            while (p.isNode()) {
+                p.markDirty();
+                int index = p.getPageIndex(key);
+                if (index < p.getKeyCount()) {
+                    upperBound = p.getKey(index);
+                }
+                p = p.getChildPage(index);
+            }
+            return p;
+        }
+
+        @Override
+        protected boolean needSplit(int index) {
+            return p.needSplit();
+        }
+
+        @Override
+        protected Object writeLocal(int index) {
+            StorageDataType keyType = map.getKeyType();
+            StorageDataType valueType = map.getValueType();
+            int splitSize = map.getBTreeStorage().getPageSplitSize();
+            int memory = p.getMemory();
+            int to = from;
+            while (to < keys.length) {
+                if (upperBound != null && keyType.compare(keys[to], upperBound) >= 0) {
+                    break;
+                }
+                if (to > from && memory > splitSize) {
+                    break;
+                }
+                memory += keyType.getMemory(keys[to]) + valueType.getMemory(values[to]);
+                to++;
+            }
+            markDirtyPages();
+            for (int i = from; i < to; i++) {
+                afterWrite(RedoLog.TYPE_PUT, keys[i], values[i]);
+            }
+            p = p.copyLeaf(keys, values, from, to);
+            p.getRef().replacePage(p);
+            map.setMaxKey(keys[to - 1]);
+            return to;
+        }
+    }
+
     public static class PutIfAbsent<K, V> extends Put<K, V, V> {
 
         public PutIfAbsent(BTreeMap<K, V> map, K key, V value,
@@ -179,6 +287,7 @@ public abstract class PageOperations {
         protected Object writeLocal(int index) {
             if (index < 0) {
                 markDirtyPages();
+                afterWrite(RedoLog.TYPE_PUT_IF_ABSENT, value);
                 insertLeaf(index, value);
                 return null;
             }
@@ -218,7 +327,8 @@ public abstract class PageOperations {
         @SuppressWarnings("unchecked")
         protected Object writeLocal(int index) {
             key = (K) ValueLong.get(map.incrementAndGetMaxKey());
-            p.markDirty(true);
+            markDirtyPages();
+            afterWrite(RedoLog.TYPE_APPEND, value);
             insertLeaf(index, value);
             return key;
         }
@@ -246,6 +356,7 @@ public abstract class PageOperations {
             Object old = p.getValue(index);
             if (map.areValuesEqual(old, oldValue)) {
                 markDirtyPages();
+                afterWrite(RedoLog.TYPE_REPLACE, value);
                 p.setValue(index, value);
                 return Boolean.TRUE;
             }
@@ -270,6 +381,7 @@ public abstract class PageOperations {
                 return null;
             }
             markDirtyPages();
+            afterWrite(RedoLog.TYPE_REMOVE, null);
             Object oldValue = p.getValue(index);
             Page oldRootPage = map.getRootPage();
             Page newPage = p.copy();
@@ -314,15 +426,12 @@ public abstract class PageOperations {
 
             if (parent.needSplit()) {
                 TmpNodePage tmp = splitPage(parent);
+                // 还没有读入的子页也要记录, 读操作可能经过分割前的结点把它放入树中
                 for (PageReference ref : tmp.left.page.getChildren()) {
-                    if (ref.page != null) {
-                        ref.page.setParentRef(tmp.left.page.getRef());
-                    }
+                    ref.setParentRef(tmp.left.page.getRef());
                 }
                 for (PageReference ref : tmp.right.page.getChildren()) {
-                    if (ref.page != null) {
-                        ref.page.setParentRef(tmp.right.page.getRef());
-                    }
+                    ref.setParentRef(tmp.right.page.getRef());
                 }
                 if (parent.getParentRef() == null) {
                     tmp.left.page.setParentRef(tmp.parent.getRef());
@@ -430,7 +539,9 @@ public abstract class PageOperations {
 
     private static TmpNodePage splitPage(Page p) {
         int at = p.getKeyCount() / 2;
-        Object k = p.getKey(at);
+        // 叶子页分裂时只要求分隔key落在左右两页之间, 内部结点的key会移到父结点中
+        Object k = p.isLeaf() ? p.bTreeMap.getKeyType().getSeparator(p.getKey(at - 1), p.getKey(at))
+                : p.getKey(at);
         Page old = p;
         p = p.copy();
         Page rightChildPage = p.split(at);
@@ -0,0 +1,46 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 游标预读使用的共享线程池, 异步读取页并放入对应BTreeStore的页缓存.
+ * <p>
+ * 队列满时直接丢弃预读请求, 游标在真正访问时仍然会同步读取.
+ * 正在预读的页由BTreeStore记录, 请求被丢弃时要告诉调用者, 否则这个页再也不会预读.
+ */
+final class PagePrefetcher {
+
+    private static final int MAX_QUEUE_SIZE = 4096;
+    private static final AtomicInteger threadId = new AtomicInteger();
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUE_SIZE), r -> {
+            Thread t = new Thread(r, "PagePrefetcher-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private PagePrefetcher() {
+    }
+
+    /**
+     * @return 队列已满被丢弃时返回false
+     */
+    static boolean prefetch(BTreeStore btreeStore, long pos) {
+        try {
+            executor.execute(() -> btreeStore.readPageQuietly(pos));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+}
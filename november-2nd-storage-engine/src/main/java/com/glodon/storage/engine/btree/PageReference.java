@@ -44,6 +44,10 @@ public class PageReference {
 
     Page page;
     long pos;
+    // 叶子页在pos处的版本的Bloom过滤器, 只在page不在内存中时使用
+    BloomFilter bloomFilter;
+    // 所在结点分割后这个引用移到了新的结点中, 之后放入的页以新结点的引用为父引用
+    private PageReference parentRef;
 
     public PageReference() {
     }
@@ -79,6 +83,34 @@ public class PageReference {
         }
     }
 
+    /**
+     * 多个线程同时读取同一个子页时只有第一个读出的页放入引用, 不会覆盖写操作已经替换的新页.
+     * 先设置页的引用再放入, 其他线程拿到的页不会指向旧的引用.
+     * 读操作经过的结点可能已经被分割, 这时使用分割时记录的新结点的引用.
+     *
+     * @return 引用中的页
+     */
+    synchronized Page attachPage(Page page, PageReference parentRef) {
+        if (this.page == null) {
+            page.setRef(this);
+            page.setParentRef(this.parentRef != null ? this.parentRef : parentRef);
+            this.page = page;
+            return page;
+        }
+        return this.page;
+    }
+
+    /**
+     * 结点分割后为移到新结点中的每个子引用调用, 与attachPage互斥,
+     * 已经在内存中的页和之后放入的页都指向新结点, 写操作可以沿父引用标记脏页.
+     */
+    synchronized void setParentRef(PageReference parentRef) {
+        this.parentRef = parentRef;
+        if (page != null) {
+            page.setParentRef(parentRef);
+        }
+    }
+
     @Override
     public String toString() {
         return "PageReference[ pos=" + pos + "]";
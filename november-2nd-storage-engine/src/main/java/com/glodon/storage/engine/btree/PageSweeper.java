@@ -0,0 +1,32 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在后台把干净的叶子页从树中换出, 所有BTreeStore共享一个线程.
+ * <p>
+ * 读取页的线程可能持有map的共享锁, 不能直接获取排它锁换出页, 所以交给这个线程执行.
+ * 每个BTreeStore同时最多只有一个等待执行的任务.
+ */
+final class PageSweeper {
+
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "PageSweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private PageSweeper() {
+    }
+
+    static void sweep(BTreeStore btreeStore) {
+        executor.execute(btreeStore::sweepQuietly);
+    }
+}
@@ -12,6 +12,24 @@ public class PageUtils {
 
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    // 没有PAGE_COMPRESSED位时的4表示LZ4压缩
+    public static final int PAGE_COMPRESSED_LZ4 = 4;
+
+    // 叶子页的value后面带有偏移表, 读取时按需解码
+    public static final int PAGE_LAZY_VALUES = 8;
+
+    // long类型的key按差值编码
+    public static final int PAGE_LONG_KEYS = 16;
+
+    // key按前缀压缩
+    public static final int PAGE_PREFIX_KEYS = 32;
+
+    // 内部结点中带有叶子页的Bloom过滤器
+    public static final int PAGE_BLOOM_FILTERS = 64;
+
+    // 列页的数据前面带有编码方式, 只用于列页
+    public static final int PAGE_ENCODED_COLUMN = 8;
+
     public static final int PAGE_MEMORY = 128;
 
     public static final int PAGE_MEMORY_CHILD = 16;
@@ -24,6 +42,10 @@ public class PageUtils {
         return (int) (pos >> 2);
     }
 
+    public static boolean isCompressed(int type) {
+        return (type & (PAGE_COMPRESSED | PAGE_COMPRESSED_LZ4)) != 0;
+    }
+
     public static int getPageType(long pos) {
         return ((int) pos) & 3;
     }
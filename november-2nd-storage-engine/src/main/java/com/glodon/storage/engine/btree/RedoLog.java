@@ -0,0 +1,380 @@
+package com.glodon.storage.engine.btree;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import com.glodon.base.conf.Config;
+import com.glodon.base.fs.FileStorage;
+import com.glodon.base.fs.FileUtils;
+import com.glodon.base.logging.Logger;
+import com.glodon.base.logging.LoggerFactory;
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.util.DataUtils;
+
+/**
+ * Storage级别的重做日志, 追加写入, 组提交.
+ * <p>
+ * 日志文件名: redo_[segmentId].log, 每个日志记录格式:
+ * [length int][crc int][lsn long][type byte][mapName][key][value]
+ * <p>
+ * 数据块保存时在chunk头中记录保存开始时的lsn, 打开BTreeMap时从该lsn之后重放.
+ */
+public class RedoLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedoLog.class);
+
+    public static final int TYPE_PUT = 1;
+    public static final int TYPE_PUT_IF_ABSENT = 2;
+    public static final int TYPE_REPLACE = 3;
+    public static final int TYPE_REMOVE = 4;
+    public static final int TYPE_APPEND = 5;
+    public static final int TYPE_CLEAR = 6;
+
+    private static final String FILE_PREFIX = "redo_";
+    private static final String FILE_SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 4 + 4 + 8 + 1;
+    private static final int READ_BLOCK_SIZE = 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public enum SyncMode {
+        INSTANT,
+        PERIODIC,
+        NO_SYNC;
+    }
+
+    public interface RecordHandler {
+        void handle(int type, ByteBuffer buff);
+    }
+
+    private static class Segment {
+        final int id;
+        final FileStorage fileStorage;
+        // 每个map在这个文件中最后一条记录的lsn
+        final Map<String, Long> mapLsns = new HashMap<>();
+        long size;
+        long lastLsn;
+
+        Segment(int id, FileStorage fileStorage) {
+            this.id = id;
+            this.fileStorage = fileStorage;
+            this.size = fileStorage.size();
+        }
+    }
+
+    private final String logDir;
+    private final Config config;
+    private final SyncMode syncMode;
+    private final long syncPeriod;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Long> checkpoints = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+
+    private Segment current;
+    private DataBuffer pending = DataBuffer.create();
+    private DataBuffer writing = DataBuffer.create();
+    private long lastLsn;
+    private volatile long syncedLsn;
+    private volatile boolean closed;
+    private Thread syncThread;
+
+    public RedoLog(String logDir, Config config) {
+        this.logDir = logDir;
+        this.config = config;
+        this.syncMode = SyncMode.valueOf(config.getRedoLogSyncMode().toUpperCase());
+        this.syncPeriod = config.getRedoLogSyncPeriod();
+        init();
+    }
+
+    private void init() {
+        for (String f : FileUtils.newDirectoryStream(logDir)) {
+            String name = FileUtils.getName(f);
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                int id = Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                segments.put(id, new Segment(id, openFileStorage(id)));
+            }
+        }
+        for (Segment s : segments.values()) {
+            long validSize = scan(s, (lsn, type, mapName, buff) -> {
+                s.mapLsns.put(mapName, lsn);
+                s.lastLsn = lsn;
+            });
+            if (validSize < s.size) {
+                logger.warn("Truncate redo log {} from {} to {}", s.fileStorage.getFileName(), s.size, validSize);
+                s.fileStorage.truncate(validSize);
+                s.size = validSize;
+            }
+            if (s.lastLsn > lastLsn) {
+                lastLsn = s.lastLsn;
+            }
+        }
+        syncedLsn = lastLsn;
+        current = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+
+        syncThread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(syncPeriod);
+                    sync();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    logger.warn("Failed to sync redo log", t);
+                }
+            }
+        }, "RedoLogSyncThread-" + FileUtils.getName(logDir));
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    private FileStorage openFileStorage(int segmentId) {
+        FileStorage fileStorage = new FileStorage();
+        fileStorage.open(logDir + File.separator + FILE_PREFIX + segmentId + FILE_SUFFIX, config);
+        return fileStorage;
+    }
+
+    private Segment createSegment(int id) {
+        Segment s = new Segment(id, openFileStorage(id));
+        segments.put(id, s);
+        return s;
+    }
+
+    public SyncMode getSyncMode() {
+        return syncMode;
+    }
+
+    public synchronized long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * 追加一条日志记录, 只写入内存缓冲区, 由commit或后台线程统一落盘
+     *
+     * @return 该记录的lsn
+     */
+    public long append(String mapName, int type, ByteBuffer payload) {
+        byte[] name = mapName.getBytes(DataUtils.UTF8);
+        synchronized (this) {
+            if (closed) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "Redo log is closed");
+            }
+            long lsn = ++lastLsn;
+            int start = pending.position();
+            pending.putInt(0).putInt(0).putLong(lsn).put((byte) type).putVarInt(name.length).put(name);
+            if (payload != null) {
+                pending.put(payload);
+            }
+            int length = pending.position() - start;
+            pending.putInt(start, length);
+            pending.putInt(start + 4, checksum(pending.getBuffer(), start + 8, start + length));
+            current.mapLsns.put(mapName, lsn);
+            current.lastLsn = lsn;
+            return lsn;
+        }
+    }
+
+    /**
+     * 在INSTANT模式下等待lsn落盘, 同时等待的写线程共享一次fsync
+     */
+    public void commit(long lsn) {
+        if (syncMode == SyncMode.INSTANT && lsn > 0) {
+            sync(lsn);
+        }
+    }
+
+    public void sync() {
+        sync(getLastLsn());
+    }
+
+    private void sync(long lsn) {
+        if (syncedLsn >= lsn) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedLsn >= lsn) {
+                return;
+            }
+            write(false);
+        }
+    }
+
+    // 调用者必须持有syncLock, 缓冲区交换与文件切换在同一个同步块中完成, 保证记录与所在文件一致
+    private void write(boolean rotate) {
+        DataBuffer buff;
+        Segment segment;
+        long lsn;
+        synchronized (this) {
+            buff = pending;
+            pending = writing;
+            writing = buff;
+            segment = current;
+            lsn = lastLsn;
+            if (rotate || segment.size > MAX_SEGMENT_SIZE) {
+                current = createSegment(segment.id + 1);
+            }
+        }
+        ByteBuffer b = buff.getAndFlipBuffer();
+        int length = b.remaining();
+        if (length > 0) {
+            segment.fileStorage.writeFully(segment.size, b);
+            segment.size += length;
+            if (syncMode != SyncMode.NO_SYNC) {
+                segment.fileStorage.sync();
+            }
+        }
+        buff.clear();
+        syncedLsn = lsn;
+    }
+
+    /**
+     * 切换到新的日志文件, 旧文件在所有相关map完成检查点后删除
+     */
+    public void rotate() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed || current.size == 0 && pending.position() == 0) {
+                    return;
+                }
+            }
+            write(true);
+        }
+    }
+
+    /**
+     * 记录map的检查点, lsn之前的日志记录已经包含在map最新的chunk中
+     */
+    public void setCheckpoint(String mapName, long lsn) {
+        checkpoints.put(mapName, lsn);
+    }
+
+    public synchronized void removeObsoleteSegments() {
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment s = iterator.next();
+            if (s == current) {
+                break;
+            }
+            if (!isObsolete(s)) {
+                continue;
+            }
+            s.fileStorage.close();
+            s.fileStorage.delete();
+            iterator.remove();
+        }
+    }
+
+    // 每个map只和它自己在文件中的最后一条记录比较, 没有写入的map不会让文件一直保留
+    private boolean isObsolete(Segment s) {
+        for (Map.Entry<String, Long> e : s.mapLsns.entrySet()) {
+            Long lsn = checkpoints.get(e.getKey());
+            if (lsn == null || lsn < e.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按顺序重放指定map在fromLsn之后的日志记录
+     */
+    public void replay(String mapName, long fromLsn, RecordHandler handler) {
+        List<Segment> list;
+        synchronized (this) {
+            list = new ArrayList<>(segments.values());
+        }
+        for (Segment s : list) {
+            if (s == current) {
+                continue;
+            }
+            Long last = s.mapLsns.get(mapName);
+            if (last == null || last <= fromLsn) {
+                continue;
+            }
+            scan(s, (lsn, type, name, buff) -> {
+                if (lsn > fromLsn && name.equals(mapName)) {
+                    handler.handle(type, buff);
+                }
+            });
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long lsn, int type, String mapName, ByteBuffer buff);
+    }
+
+    /**
+     * 顺序扫描日志文件, 遇到不完整或校验失败的记录时停止
+     *
+     * @return 有效记录的结束位置
+     */
+    private long scan(Segment s, RecordVisitor visitor) {
+        long size = s.size;
+        long pos = 0;
+        ByteBuffer buff = ByteBuffer.allocate(0);
+        long buffPos = 0;
+        while (pos + 4 <= size) {
+            if (pos + 4 > buffPos + buff.limit()) {
+                buffPos = pos;
+                buff = s.fileStorage.readFully(pos, (int) Math.min(READ_BLOCK_SIZE, size - pos));
+            }
+            int length = buff.getInt((int) (pos - buffPos));
+            if (length < RECORD_HEADER_LENGTH || pos + length > size) {
+                break;
+            }
+            if (pos + length > buffPos + buff.limit()) {
+                buffPos = pos;
+                buff = s.fileStorage.readFully(pos, (int) Math.min(Math.max(length, READ_BLOCK_SIZE), size - pos));
+            }
+            int start = (int) (pos - buffPos);
+            if (buff.getInt(start + 4) != checksum(buff, start + 8, start + length)) {
+                break;
+            }
+            ByteBuffer record = buff.duplicate();
+            record.limit(start + length).position(start + 8);
+            long lsn = record.getLong();
+            int type = record.get();
+            byte[] name = new byte[DataUtils.readVarInt(record)];
+            record.get(name);
+            visitor.visit(lsn, type, new String(name, DataUtils.UTF8), record.slice());
+            pos += length;
+        }
+        return pos;
+    }
+
+    private static int checksum(ByteBuffer buff, int start, int end) {
+        ByteBuffer b = buff.duplicate();
+        b.limit(end).position(start);
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        synchronized (syncLock) {
+            synchronized (this) {
+                closed = true;
+            }
+            write(false);
+        }
+        syncThread.interrupt();
+        removeObsoleteSegments();
+        synchronized (this) {
+            for (Segment s : segments.values()) {
+                s.fileStorage.close();
+            }
+            segments.clear();
+            pending.close();
+            writing.close();
+        }
+    }
+}
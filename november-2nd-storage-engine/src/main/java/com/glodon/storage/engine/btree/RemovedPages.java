@@ -0,0 +1,126 @@
+package com.glodon.storage.engine.btree;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.util.DataUtils;
+import com.glodon.base.util.IntBitmap;
+
+/**
+ * 已删除页的集合, 每个chunk一个位图, 按页在chunk中的偏移量记录, 另外记录已删除的叶子页个数.
+ * <p>
+ * 格式: [chunk个数 varInt], 每个chunk: [chunkId varInt][已删除叶子页个数 varInt][位图]
+ */
+final class RemovedPages {
+
+    private static class ChunkPages {
+        final IntBitmap offsets;
+        int leafPageCount;
+
+        ChunkPages(IntBitmap offsets, int leafPageCount) {
+            this.offsets = offsets;
+            this.leafPageCount = leafPageCount;
+        }
+    }
+
+    private final TreeMap<Integer, ChunkPages> chunks = new TreeMap<>();
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(long pagePos) {
+        int chunkId = PageUtils.getPageChunkId(pagePos);
+        ChunkPages pages = chunks.get(chunkId);
+        if (pages == null) {
+            pages = new ChunkPages(new IntBitmap(), 0);
+            chunks.put(chunkId, pages);
+        }
+        if (pages.offsets.add(PageUtils.getPageOffset(pagePos))) {
+            if (PageUtils.isLeafPage(pagePos))
+                pages.leafPageCount++;
+            size++;
+        }
+    }
+
+    boolean contains(long pagePos) {
+        ChunkPages pages = chunks.get(PageUtils.getPageChunkId(pagePos));
+        return pages != null && pages.offsets.contains(PageUtils.getPageOffset(pagePos));
+    }
+
+    /**
+     * 某个chunk中已删除页的个数
+     */
+    int getPageCount(int chunkId) {
+        ChunkPages pages = chunks.get(chunkId);
+        return pages == null ? 0 : pages.offsets.size();
+    }
+
+    /**
+     * 有已删除叶子页的chunk, 只删除了结点页的chunk不用压缩
+     */
+    HashSet<Integer> getLeafPageChunkIds() {
+        HashSet<Integer> chunkIds = new HashSet<>();
+        for (Map.Entry<Integer, ChunkPages> e : chunks.entrySet()) {
+            if (e.getValue().leafPageCount > 0)
+                chunkIds.add(e.getKey());
+        }
+        return chunkIds;
+    }
+
+    /**
+     * 删除属于这个chunk的所有页, 返回是否有页被删除
+     */
+    boolean removeChunk(int chunkId) {
+        ChunkPages pages = chunks.remove(chunkId);
+        if (pages == null)
+            return false;
+        size -= pages.offsets.size();
+        return true;
+    }
+
+    void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    RemovedPages copy() {
+        RemovedPages copy = new RemovedPages();
+        for (Map.Entry<Integer, ChunkPages> e : chunks.entrySet()) {
+            ChunkPages pages = e.getValue();
+            copy.chunks.put(e.getKey(), new ChunkPages(pages.offsets.copy(), pages.leafPageCount));
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    void write(DataBuffer buff) {
+        buff.putVarInt(chunks.size());
+        for (Map.Entry<Integer, ChunkPages> e : chunks.entrySet()) {
+            ChunkPages pages = e.getValue();
+            buff.putVarInt(e.getKey()).putVarInt(pages.leafPageCount);
+            pages.offsets.write(buff);
+        }
+    }
+
+    static RemovedPages read(ByteBuffer buff) {
+        RemovedPages removedPages = new RemovedPages();
+        int chunkCount = DataUtils.readVarInt(buff);
+        for (int i = 0; i < chunkCount; i++) {
+            int chunkId = DataUtils.readVarInt(buff);
+            int leafPageCount = DataUtils.readVarInt(buff);
+            IntBitmap offsets = IntBitmap.read(buff);
+            removedPages.chunks.put(chunkId, new ChunkPages(offsets, leafPageCount));
+            removedPages.size += offsets.size();
+        }
+        return removedPages;
+    }
+}
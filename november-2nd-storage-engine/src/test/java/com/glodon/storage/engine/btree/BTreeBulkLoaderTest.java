@@ -0,0 +1,142 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class BTreeBulkLoaderTest {
+
+    private static final int COUNT = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Iterator<Map.Entry<Long, String>> entries(int count) {
+        return new Iterator<Map.Entry<Long, String>>() {
+            long i;
+
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            @Override
+            public Map.Entry<Long, String> next() {
+                long key = i++ * 2;
+                return new AbstractMap.SimpleImmutableEntry<>(key, "value-" + key);
+            }
+        };
+    }
+
+    private static void check(StorageMap<Long, String> map, int count) {
+        Assert.assertEquals(count, map.size());
+        StorageMapCursor<Long, String> cursor = map.cursor();
+        long i = 0;
+        while (cursor.hasNext()) {
+            long key = cursor.next();
+            Assert.assertEquals(i * 2, key);
+            Assert.assertEquals("value-" + key, cursor.getValue());
+            i++;
+        }
+        Assert.assertEquals(count, i);
+        Assert.assertNull(map.get(1L));
+        Assert.assertEquals("value-" + (count - 1) * 2L, map.get((count - 1) * 2L));
+    }
+
+    private static void collectPages(BTreeStore store, long pos, Set<Long> positions) {
+        positions.add(pos);
+        if (PageUtils.isNodePage(pos)) {
+            for (PageReference ref : store.readPage(pos).getChildren()) {
+                collectPages(store, ref.getPos(), positions);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BTreeMap<Long, String> openMap(Storage storage) {
+        return (BTreeMap<Long, String>) (StorageMap<?, ?>) storage.openMap("m", ValueLong.type, ValueString.type);
+    }
+
+    // chunk写满时的临时树在之后的chunk中记为已删除页, 最后一个chunk的树是map的根
+    @Test
+    public void testLoadSeveralChunks() throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        Storage s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        BTreeMap<Long, String> map = openMap(s);
+        Assert.assertEquals(COUNT, new BTreeBulkLoader<>(map, 90, 256 * 1024).load(entries(COUNT)));
+        check(map, COUNT);
+
+        BTreeStore store = map.getBTreeStorage();
+        Chunk last = store.getLastChunk();
+        Assert.assertTrue(last.id > 2);
+        Set<Long> reachable = new HashSet<>();
+        collectPages(store, last.rootPagePos, reachable);
+        RemovedPages removedPages = store.getRemovedPages();
+        Assert.assertFalse(removedPages.isEmpty());
+        for (long pos : reachable) {
+            Assert.assertFalse(removedPages.contains(pos));
+        }
+        // 之前每个chunk的根要么是临时的结点, 已经删除, 要么是最终的树中完整的子树
+        for (int id = 1; id < last.id; id++) {
+            long root = store.getChunk(PageUtils.getPagePos(id, 0, 0)).rootPagePos;
+            Assert.assertTrue(removedPages.contains(root) != reachable.contains(root));
+        }
+        s.close();
+
+        s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        map = openMap(s);
+        check(map, COUNT);
+        map.put(1L, "x");
+        map.remove(0L);
+        s.save();
+        s.close();
+
+        s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        map = openMap(s);
+        Assert.assertEquals(COUNT, map.size());
+        Assert.assertEquals("x", map.get(1L));
+        Assert.assertNull(map.get(0L));
+        s.close();
+    }
+
+    @Test
+    public void testLoadRequiresSortedKeys() throws Exception {
+        Storage s = new StorageImpl.StorageBuilder().storagePath(folder.newFolder().getAbsolutePath()).build();
+        BTreeMap<Long, String> map = openMap(s);
+        Iterator<Map.Entry<Long, String>> unsorted = new Iterator<Map.Entry<Long, String>>() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < 2;
+            }
+
+            @Override
+            public Map.Entry<Long, String> next() {
+                return new AbstractMap.SimpleImmutableEntry<>(i++ == 0 ? 2L : 1L, "v");
+            }
+        };
+        try {
+            new BTreeBulkLoader<>(map, 90, 256 * 1024).load(unsorted);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // 期望的异常
+        } finally {
+            s.close();
+        }
+    }
+}
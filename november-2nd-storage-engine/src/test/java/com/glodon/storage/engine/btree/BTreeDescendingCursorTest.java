@@ -0,0 +1,128 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.CursorParameters;
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class BTreeDescendingCursorTest {
+
+    private static final int COUNT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @SuppressWarnings("unchecked")
+    private static BTreeMap<Long, String> openMap(Storage storage) {
+        return (BTreeMap<Long, String>) (StorageMap<?, ?>) storage.openMap("m", ValueLong.type, ValueString.type);
+    }
+
+    private static List<Long> expected(TreeMap<Long, String> data, Long from, boolean fromInclusive, Long to,
+                                       boolean toInclusive) {
+        List<Long> keys = new ArrayList<>();
+        for (long key : data.descendingKeySet()) {
+            if (from != null && (key > from || key == from && !fromInclusive)) {
+                continue;
+            }
+            if (to != null && (key < to || key == to && !toInclusive)) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static List<Long> scan(BTreeMap<Long, String> map, CursorParameters<Long> parameters) {
+        List<Long> keys = new ArrayList<>();
+        StorageMapCursor<Long, String> cursor = map.cursor(parameters, true);
+        while (cursor.hasNext()) {
+            long key = cursor.next();
+            Assert.assertEquals("v" + key, cursor.getValue());
+            keys.add(key);
+        }
+        Assert.assertFalse(cursor.hasNext());
+        return keys;
+    }
+
+    // from和to落在key上, 两个key之间, 内部结点的分隔key上, 以及超出所有key的范围, 包含和不包含边界都要和TreeMap一致
+    @Test
+    public void testBounds() throws Exception {
+        Storage s = new StorageImpl.StorageBuilder().storagePath(folder.newFolder().getAbsolutePath()).build();
+        BTreeMap<Long, String> map = openMap(s);
+        TreeMap<Long, String> data = new TreeMap<>();
+        for (long i = 0; i < COUNT; i++) {
+            map.put(i * 10, "v" + i * 10);
+            data.put(i * 10, "v" + i * 10);
+        }
+        Page root = map.getRootPage();
+        Assert.assertFalse(root.isLeaf());
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(null);
+        for (long b : new long[] { -5, 0, 5, 10, 25000, 25005, (COUNT - 1) * 10, (COUNT - 1) * 10 + 5, COUNT * 20 }) {
+            bounds.add(b);
+        }
+        for (int i = 0; i < root.getKeyCount(); i += Math.max(1, root.getKeyCount() / 4)) {
+            long separator = (Long) root.getKey(i);
+            bounds.add(separator);
+            bounds.add(separator - 1);
+            bounds.add(separator + 1);
+        }
+        for (Long from : bounds) {
+            for (Long to : bounds) {
+                for (int flags = 0; flags < 4; flags++) {
+                    boolean fromInclusive = (flags & 1) != 0;
+                    boolean toInclusive = (flags & 2) != 0;
+                    CursorParameters<Long> parameters = new CursorParameters<>(from, fromInclusive, to, toInclusive,
+                            null, true);
+                    Assert.assertEquals("from " + from + " " + fromInclusive + " to " + to + " " + toInclusive,
+                            expected(data, from, fromInclusive, to, toInclusive), scan(map, parameters));
+                }
+            }
+        }
+        s.close();
+    }
+
+    // 进入内部结点后向左预读还没有加载的子页, 只建游标不遍历时缓存也会增长; 预读不改变遍历的结果
+    @Test
+    public void testPrefetch() throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        Storage s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        BTreeMap<Long, String> map = openMap(s);
+        TreeMap<Long, String> data = new TreeMap<>();
+        for (long i = 0; i < COUNT; i++) {
+            map.put(i * 10, "v" + i * 10);
+            data.put(i * 10, "v" + i * 10);
+        }
+        s.close();
+
+        s = new StorageImpl.StorageBuilder().storagePath(path).cacheSize(16).build();
+        map = openMap(s);
+        PageCache cache = ((StorageImpl) s).getPageCache();
+        map.cursor(CursorParameters.create(null), true).hasNext();
+        long used = cache.getUsedMemory();
+        map.cursor(CursorParameters.<Long> create(null).prefetch(8), true);
+        for (int i = 0; i < 500 && cache.getUsedMemory() == used; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(cache.getUsedMemory() > used);
+
+        for (long to : new long[] { 0, 25000, 25005, (COUNT - 1) * 10 }) {
+            CursorParameters<Long> parameters = CursorParameters.<Long> create(null, to).prefetch(4);
+            Assert.assertEquals(expected(data, null, true, to, true), scan(map, parameters));
+        }
+        s.close();
+    }
+}
@@ -0,0 +1,89 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class LongKeysTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void check(StorageMap<Long, String> map, List<Long> keys) {
+        Assert.assertEquals(keys.size(), map.size());
+        StorageMapCursor<Long, String> cursor = map.cursor();
+        for (long key : keys) {
+            Assert.assertTrue(cursor.hasNext());
+            Assert.assertEquals(key, (long) cursor.next());
+            Assert.assertEquals("v" + key, cursor.getValue());
+        }
+        Assert.assertFalse(cursor.hasNext());
+        for (long key : keys) {
+            Assert.assertEquals("v" + key, map.get(key));
+        }
+    }
+
+    private void roundTrip(TreeSet<Long> keySet) throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        List<Long> keys = new ArrayList<>(keySet);
+        Storage s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        StorageMap<Long, String> map = s.openMap("m", ValueLong.type, ValueString.type);
+        for (long key : keys) {
+            map.put(key, "v" + key);
+        }
+        s.close();
+
+        s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        map = s.openMap("m", ValueLong.type, ValueString.type);
+        check(map, keys);
+        s.close();
+    }
+
+    // 第一个key是zigzag编码, 之后是和前一个key的差值; 从Long.MIN_VALUE到Long.MAX_VALUE的差值会溢出, 读取时要按同样的方式回绕
+    @Test
+    public void testExtremeKeys() throws Exception {
+        TreeSet<Long> keys = new TreeSet<>();
+        keys.add(Long.MIN_VALUE);
+        keys.add(Long.MAX_VALUE);
+        roundTrip(keys);
+
+        keys.add(Long.MIN_VALUE + 1);
+        keys.add(-1L);
+        keys.add(0L);
+        keys.add(1L);
+        keys.add(Long.MAX_VALUE - 1);
+        roundTrip(keys);
+    }
+
+    // 只有负数的页, 以及正负混合, 相邻差值从1到接近2^64的多个页和结点页
+    @Test
+    public void testNegativeKeys() throws Exception {
+        TreeSet<Long> keys = new TreeSet<>();
+        for (long i = 1; i <= 3000; i++) {
+            keys.add(-i);
+            keys.add(Long.MIN_VALUE + i * 7);
+        }
+        roundTrip(keys);
+
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            keys.add(r.nextLong());
+        }
+        keys.add(Long.MIN_VALUE);
+        keys.add(Long.MAX_VALUE);
+        roundTrip(keys);
+    }
+}
@@ -0,0 +1,68 @@
+package com.glodon.storage.engine.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.storage.StorageMapCursor;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class PrefixKeysTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 长度不同的key序列化后第一个字节就不同, 和前一个key没有共享前缀; 超过64字节的key需要扩大解码的缓冲区
+    private static List<String> keys() {
+        TreeSet<String> keys = new TreeSet<>();
+        keys.add("");
+        for (int i = 0; i < 2000; i++) {
+            keys.add(String.format("category-%08d", i));
+            if (i % 10 == 0) {
+                keys.add("c" + i);
+            }
+            if (i % 50 == 0) {
+                StringBuilder b = new StringBuilder("long-");
+                for (int j = 0; j < 20; j++) {
+                    b.append(String.format("%08d", i));
+                }
+                keys.add(b.toString());
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    @Test
+    public void testReadKeysWithoutCommonPrefix() throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        List<String> keys = keys();
+        Storage s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        StorageMap<String, String> map = s.openMap("m", ValueString.type, ValueString.type);
+        for (String key : keys) {
+            map.put(key, "v" + key.length());
+        }
+        s.close();
+
+        s = new StorageImpl.StorageBuilder().storagePath(path).build();
+        map = s.openMap("m", ValueString.type, ValueString.type);
+        Assert.assertEquals(keys.size(), map.size());
+        StorageMapCursor<String, String> cursor = map.cursor();
+        for (String key : keys) {
+            Assert.assertTrue(cursor.hasNext());
+            Assert.assertEquals(key, cursor.next());
+            Assert.assertEquals("v" + key.length(), cursor.getValue());
+        }
+        Assert.assertFalse(cursor.hasNext());
+        Assert.assertEquals("v0", map.get(""));
+        Assert.assertNull(map.get("category-"));
+        s.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.glodon.storage.engine.btree;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class RedoLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Storage open(String path) {
+        return new StorageImpl.StorageBuilder().storagePath(path).redoLog().build();
+    }
+
+    // 空闲的map在文件中只有旧记录, 它的检查点不再前进时旧文件也要能删除
+    @Test
+    public void testIdleMapDoesNotPinSegments() throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        Storage s = open(path);
+        StorageMap<Long, String> idle = s.openMap("idle", ValueLong.type, ValueString.type);
+        StorageMap<Long, String> busy = s.openMap("busy", ValueLong.type, ValueString.type);
+        idle.put(1L, "a");
+        idle.save();
+        for (int round = 0; round < 3; round++) {
+            for (long i = 0; i < 100; i++) {
+                busy.put(i, "v" + round);
+            }
+            s.save();
+        }
+        Assert.assertFalse(new File(path, "redo_1.log").exists());
+        Assert.assertFalse(new File(path, "redo_2.log").exists());
+        s.close();
+
+        s = open(path);
+        idle = s.openMap("idle", ValueLong.type, ValueString.type);
+        busy = s.openMap("busy", ValueLong.type, ValueString.type);
+        Assert.assertEquals("a", idle.get(1L));
+        Assert.assertEquals("v2", busy.get(99L));
+        s.close();
+    }
+}
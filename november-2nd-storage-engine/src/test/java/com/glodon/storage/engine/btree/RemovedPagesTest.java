@@ -0,0 +1,210 @@
+package com.glodon.storage.engine.btree;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.glodon.base.storage.DataBuffer;
+import com.glodon.base.storage.Storage;
+import com.glodon.base.storage.StorageMap;
+import com.glodon.base.util.DataUtils;
+import com.glodon.base.value.ValueLong;
+import com.glodon.base.value.ValueString;
+import com.glodon.storage.engine.StorageImpl;
+
+public class RemovedPagesTest {
+
+    private static final int COUNT = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RemovedPages writeAndRead(RemovedPages removedPages) {
+        DataBuffer buff = DataBuffer.create();
+        try {
+            removedPages.write(buff);
+            ByteBuffer bytes = buff.getAndFlipBuffer();
+            RemovedPages copy = RemovedPages.read(bytes);
+            Assert.assertFalse(bytes.hasRemaining());
+            return copy;
+        } finally {
+            buff.close();
+        }
+    }
+
+    // 一个chunk超过4096个已删除页时转成位图, 叶子页个数和每个chunk的页数都要保留
+    @Test
+    public void testWriteAndRead() {
+        RemovedPages removedPages = new RemovedPages();
+        for (int i = 0; i < 5000; i++) {
+            removedPages.add(PageUtils.getPagePos(3, i * 100, i % 2));
+        }
+        removedPages.add(PageUtils.getPagePos(3, 100, 0));
+        removedPages.add(PageUtils.getPagePos(9, 0, PageUtils.PAGE_TYPE_NODE));
+        Assert.assertEquals(5001, removedPages.size());
+
+        RemovedPages copy = writeAndRead(removedPages);
+        Assert.assertEquals(5001, copy.size());
+        Assert.assertEquals(5000, copy.getPageCount(3));
+        Assert.assertEquals(1, copy.getPageCount(9));
+        Assert.assertEquals(Collections.singleton(3), copy.getLeafPageChunkIds());
+        Assert.assertTrue(copy.contains(PageUtils.getPagePos(3, 4999 * 100, 1)));
+        Assert.assertFalse(copy.contains(PageUtils.getPagePos(3, 4999 * 100 + 1, 1)));
+        Assert.assertFalse(copy.contains(PageUtils.getPagePos(4, 0, 0)));
+
+        Assert.assertTrue(copy.removeChunk(3));
+        Assert.assertFalse(copy.removeChunk(3));
+        Assert.assertEquals(1, copy.size());
+        Assert.assertEquals(1, writeAndRead(copy).size());
+        Assert.assertEquals(5001, removedPages.size());
+        Assert.assertTrue(writeAndRead(new RemovedPages()).isEmpty());
+    }
+
+    private static File getLastChunkFile(String mapDir) {
+        File last = null;
+        long maxSeq = -1;
+        for (File f : new File(mapDir).listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(Storage.SUFFIX_AO_FILE)) {
+                String s = name.substring(2, name.length() - Storage.SUFFIX_AO_FILE.length());
+                long seq = Long.parseLong(s.substring(s.indexOf('_') + 1));
+                if (seq > maxSeq) {
+                    maxSeq = seq;
+                    last = f;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static HashMap<String, String> readHeader(RandomAccessFile file) throws Exception {
+        byte[] block = new byte[Chunk.BLOCK_SIZE];
+        file.seek(0);
+        file.readFully(block);
+        HashMap<String, String> header = DataUtils.parseMap(new String(block, DataUtils.LATIN).trim());
+        header.remove("fletcher");
+        return header;
+    }
+
+    private static void writeHeader(RandomAccessFile file, Map<String, String> header) throws Exception {
+        StringBuilder buff = new StringBuilder();
+        for (Map.Entry<String, String> e : header.entrySet()) {
+            DataUtils.appendMap(buff, e.getKey(), e.getValue());
+        }
+        byte[] bytes = buff.toString().getBytes(DataUtils.LATIN);
+        DataUtils.appendMap(buff, "fletcher", DataUtils.getFletcher32(bytes, bytes.length));
+        buff.append("\n");
+        byte[] block = new byte[Chunk.BLOCK_SIZE];
+        bytes = buff.toString().getBytes(DataUtils.LATIN);
+        System.arraycopy(bytes, 0, block, 0, bytes.length);
+        file.seek(0);
+        file.write(block);
+        file.write(block);
+    }
+
+    /**
+     * 把最后一个chunk的已删除页改写成版本1的格式: 按顺序保存的页位置, 追加在文件末尾
+     */
+    private static void downgradeLastChunk(String mapDir, List<Long> removed) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(getLastChunkFile(mapDir), "rw")) {
+            HashMap<String, String> header = readHeader(file);
+            Assert.assertEquals("2", header.get("format"));
+            long end = file.length();
+            file.seek(end);
+            for (long pos : removed) {
+                file.writeLong(pos);
+            }
+            long blocks = (file.length() + Chunk.BLOCK_SIZE - 1) / Chunk.BLOCK_SIZE;
+            file.setLength(blocks * Chunk.BLOCK_SIZE);
+            header.put("format", "1");
+            header.put("blockCount", Long.toHexString(blocks));
+            header.put("removedPageOffset", Long.toHexString(end - 2 * Chunk.BLOCK_SIZE));
+            header.put("removedPageCount", Integer.toHexString(removed.size()));
+            header.remove("removedPageLength");
+            writeHeader(file, header);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BTreeMap<Long, String> openMap(Storage storage) {
+        return (BTreeMap<Long, String>) (StorageMap<?, ?>) storage.openMap("m", ValueLong.type, ValueString.type);
+    }
+
+    private static Storage open(String path) {
+        return new StorageImpl.StorageBuilder().storagePath(path).build();
+    }
+
+    // 升级前写入的store: 最后一个chunk的已删除页是版本1的格式,
+    // 打开后读成位图, 第一次保存写入版本2的chunk, 压缩删除旧chunk时原地更新的是这个新chunk
+    @Test
+    public void testOpenFormat1Store() throws Exception {
+        String path = folder.newFolder().getAbsolutePath();
+        String mapDir = path + File.separator + "m";
+        Storage s = open(path);
+        BTreeMap<Long, String> map = openMap(s);
+        for (long i = 0; i < COUNT; i++) {
+            map.put(i, "a" + i);
+        }
+        s.save();
+        for (long i = 0; i < COUNT; i += 1000) {
+            map.put(i, "b" + i);
+        }
+        s.save();
+
+        BTreeStore store = map.getBTreeStorage();
+        RemovedPages removedPages = store.getRemovedPages();
+        List<Long> removed = new ArrayList<>();
+        for (int id = 1; id < store.getLastChunk().id; id++) {
+            for (long pos : store.getChunk(PageUtils.getPagePos(id, 0, 0)).getPagePositions()) {
+                if (removedPages.contains(pos)) {
+                    removed.add(pos);
+                }
+            }
+        }
+        Collections.sort(removed);
+        Assert.assertFalse(removed.isEmpty());
+        Assert.assertEquals(removedPages.size(), removed.size());
+        s.close();
+        downgradeLastChunk(mapDir, removed);
+
+        s = open(path);
+        map = openMap(s);
+        store = map.getBTreeStorage();
+        removedPages = store.getRemovedPages();
+        Assert.assertEquals(removed.size(), removedPages.size());
+        for (long pos : removed) {
+            Assert.assertTrue(removedPages.contains(pos));
+        }
+        Assert.assertEquals(COUNT, map.size());
+        Assert.assertEquals("b1000", map.get(1000L));
+        Assert.assertEquals("a1001", map.get(1001L));
+
+        // 改写所有的key, 之前的chunk全部被删除, 压缩时更新最后一个chunk的已删除页
+        for (long i = 0; i < COUNT; i++) {
+            map.put(i, "c" + i);
+        }
+        s.save();
+        Assert.assertEquals(1, new File(mapDir).listFiles().length);
+        s.close();
+        try (RandomAccessFile file = new RandomAccessFile(getLastChunkFile(mapDir), "r")) {
+            Assert.assertEquals("2", readHeader(file).get("format"));
+        }
+
+        s = open(path);
+        map = openMap(s);
+        Assert.assertEquals(COUNT, map.size());
+        Assert.assertEquals("c1000", map.get(1000L));
+        Assert.assertTrue(map.getBTreeStorage().getRemovedPages().isEmpty());
+        s.close();
+    }
+}